@@ -0,0 +1,258 @@
+/*
+ * Copyright 2015-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onlab.stc;
+
+import com.google.common.base.Joiner;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.onlab.stc.Coordinator.TIMER;
+
+/**
+ * Built-in step actions carried out within the coordinator rather than by
+ * forking a process. These are invoked using commands starting with the
+ * {@code stc:} prefix, e.g. {@code stc:sleep 5}. Actions that take time
+ * are paced by the shared timer, so none of them holds on to a thread.
+ */
+final class Builtins {
+
+    /**
+     * Prefix of commands which invoke built-in actions.
+     */
+    static final String PREFIX = "stc:";
+
+    private static final int SUCCESS = 0;
+    private static final int FAILURE = 1;
+    private static final int UNKNOWN = 127;
+
+    private static final long DEFAULT_PORT_TIMEOUT_MILLIS = 60_000;
+    private static final long CONNECT_POLL_MILLIS = 100;
+    private static final long RETRY_MILLIS = 500;
+
+    // Not instantiable
+    private Builtins() {
+    }
+
+    /**
+     * Indicates whether the specified command invokes a built-in action.
+     *
+     * @param command command tokens
+     * @return true if the command is built in
+     */
+    static boolean isBuiltin(List<String> command) {
+        return !command.isEmpty() && command.get(0).startsWith(PREFIX);
+    }
+
+    /**
+     * Carries out the built-in action invoked by the specified command. Any
+     * lines of output are passed to the given consumer. Relative paths are
+     * resolved against the given working directory, just as they would be
+     * by a forked command.
+     *
+     * @param command command tokens
+     * @param cwd     working directory; null for that of the coordinator
+     * @param output  consumer of output lines
+     * @return future completed with the exit code of the action
+     */
+    static CompletableFuture<Integer> execute(List<String> command, String cwd, Consumer<String> output) {
+        String action = command.get(0).substring(PREFIX.length());
+        List<String> args = command.subList(1, command.size());
+        try {
+            switch (action) {
+                case "sleep":
+                    return sleep(args);
+                case "echo":
+                    output.accept(Joiner.on(' ').join(args));
+                    return done(SUCCESS);
+                case "exists":
+                    return done(exists(args, cwd, output));
+                case "touch":
+                    return done(touch(args, cwd, output));
+                case "port":
+                    return port(args, output);
+                default:
+                    output.accept("Unknown built-in action " + command.get(0));
+                    return done(UNKNOWN);
+            }
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            output.accept("Invalid arguments for " + command.get(0) + ": " + args);
+            return done(FAILURE);
+        }
+    }
+
+    private static CompletableFuture<Integer> done(int code) {
+        return CompletableFuture.completedFuture(code);
+    }
+
+    // stc:sleep <seconds>
+    private static CompletableFuture<Integer> sleep(List<String> args) {
+        long millis = Math.round(Double.parseDouble(args.get(0)) * 1_000);
+        CompletableFuture<Integer> exit = new CompletableFuture<>();
+        TIMER.schedule(() -> exit.complete(SUCCESS), millis, MILLISECONDS);
+        return exit;
+    }
+
+    // stc:exists <path>...
+    private static int exists(List<String> args, String cwd, Consumer<String> output) {
+        int code = args.isEmpty() ? FAILURE : SUCCESS;
+        for (String path : args) {
+            if (!resolve(cwd, path).exists()) {
+                output.accept(path + " does not exist");
+                code = FAILURE;
+            }
+        }
+        return code;
+    }
+
+    // stc:touch <path>...
+    private static int touch(List<String> args, String cwd, Consumer<String> output) {
+        int code = args.isEmpty() ? FAILURE : SUCCESS;
+        for (String path : args) {
+            File file = resolve(cwd, path);
+            try {
+                if (!file.createNewFile() && !file.setLastModified(System.currentTimeMillis())) {
+                    throw new IOException("Unable to update modification time");
+                }
+            } catch (IOException e) {
+                output.accept("Unable to touch " + path + ": " + e.getMessage());
+                code = FAILURE;
+            }
+        }
+        return code;
+    }
+
+    // Resolves the specified path against the working directory, if any
+    private static File resolve(String cwd, String path) {
+        File file = new File(path);
+        return file.isAbsolute() || cwd == null ? file : new File(cwd, path);
+    }
+
+    // stc:port [<host>:]<port> [<timeout-seconds>]
+    private static CompletableFuture<Integer> port(List<String> args, Consumer<String> output) {
+        String target = args.get(0);
+        int colon = target.lastIndexOf(':');
+        String host = colon > 0 ? target.substring(0, colon) : "localhost";
+        int port = Integer.parseInt(target.substring(colon + 1));
+        long timeout = args.size() > 1 ?
+                Math.round(Double.parseDouble(args.get(1)) * 1_000) : DEFAULT_PORT_TIMEOUT_MILLIS;
+
+        // Resolve the host once, rather than on each connection attempt
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        if (address.isUnresolved()) {
+            output.accept("Unable to resolve " + host);
+            return CompletableFuture.completedFuture(FAILURE);
+        }
+
+        CompletableFuture<Integer> exit = new CompletableFuture<>();
+        new PortProbe(host + ":" + port, address, System.currentTimeMillis() + timeout, exit, output).attempt();
+        return exit;
+    }
+
+    // Repeated non-blocking attempts to connect to a TCP port
+    private static final class PortProbe {
+        private final String target;
+        private final InetSocketAddress address;
+        private final long deadline;
+        private final CompletableFuture<Integer> exit;
+        private final Consumer<String> output;
+        private SocketChannel channel;
+
+        private PortProbe(String target, InetSocketAddress address, long deadline,
+                          CompletableFuture<Integer> exit, Consumer<String> output) {
+            this.target = target;
+            this.address = address;
+            this.deadline = deadline;
+            this.exit = exit;
+            this.output = output;
+        }
+
+        // Starts a new connection attempt
+        private void attempt() {
+            if (exit.isDone()) {
+                return;
+            }
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                if (channel.connect(address)) {
+                    succeed();
+                } else {
+                    TIMER.schedule(this::check, CONNECT_POLL_MILLIS, MILLISECONDS);
+                }
+            } catch (IOException e) {
+                retry();
+            }
+        }
+
+        // Checks on the connection attempt in progress
+        private void check() {
+            if (exit.isDone()) {
+                close();
+                return;
+            }
+            try {
+                if (channel.finishConnect()) {
+                    succeed();
+                } else if (System.currentTimeMillis() > deadline) {
+                    fail();
+                } else {
+                    TIMER.schedule(this::check, CONNECT_POLL_MILLIS, MILLISECONDS);
+                }
+            } catch (IOException e) {
+                retry();
+            }
+        }
+
+        private void retry() {
+            close();
+            if (System.currentTimeMillis() + RETRY_MILLIS > deadline) {
+                fail();
+            } else {
+                TIMER.schedule(this::attempt, RETRY_MILLIS, MILLISECONDS);
+            }
+        }
+
+        private void succeed() {
+            close();
+            output.accept(target + " is accepting connections");
+            exit.complete(SUCCESS);
+        }
+
+        private void fail() {
+            close();
+            output.accept(target + " is not accepting connections");
+            exit.complete(FAILURE);
+        }
+
+        private void close() {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                output.accept("Unable to close connection: " + e.getMessage());
+            }
+        }
+    }
+
+}
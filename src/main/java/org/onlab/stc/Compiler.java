@@ -16,12 +16,12 @@
 package org.onlab.stc;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import org.apache.commons.configuration.HierarchicalConfiguration;
-import org.onlab.graph.DepthFirstSearch;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -32,9 +32,8 @@ import java.util.Set;
 
 import static com.google.common.base.Preconditions.*;
 import static com.google.common.base.Strings.isNullOrEmpty;
+import static com.google.common.base.Strings.nullToEmpty;
 import static java.lang.Integer.parseInt;
-import static org.onlab.graph.DepthFirstSearch.EdgeType.BACK_EDGE;
-import static org.onlab.graph.GraphPathSearch.ALL_PATHS;
 import static org.onlab.stc.Scenario.loadScenario;
 
 /**
@@ -51,6 +50,8 @@ public class Compiler {
     private static final String PARALLEL = "parallel";
     private static final String SEQUENTIAL = "sequential";
     private static final String DEPENDENCY = "dependency";
+    private static final String POOL = "pool";
+    private static final String ENVIRONMENT = "env";
 
     private static final String LOG_DIR = "[@logDir]";
     private static final String NAME = "[@name]";
@@ -58,6 +59,11 @@ public class Compiler {
     private static final String ENV = "[@env]";
     private static final String CWD = "[@cwd]";
     private static final String DELAY = "[@delay]";
+    private static final String TIMEOUT = "[@timeout]";
+    private static final String RETRIES = "[@retries]";
+    private static final String RETRY_DELAY = "[@retryDelay]";
+    private static final String INPUTS = "[@inputs]";
+    private static final String OUTPUTS = "[@outputs]";
     private static final String REQUIRES = "[@requires]";
     private static final String IF = "[@if]";
     private static final String UNLESS = "[@unless]";
@@ -66,6 +72,13 @@ public class Compiler {
     private static final String ENDS = "[@ends]";
     private static final String FILE = "[@file]";
     private static final String NAMESPACE = "[@namespace]";
+    private static final String USES = "[@uses]";
+    private static final String SIZE = "[@size]";
+    private static final String MAX_PARALLEL = "[@maxParallel]";
+    private static final String CAPTURE = "[@capture]";
+    private static final String VALUE = "[@value]";
+
+    private static final long DEFAULT_RETRY_DELAY = 1_000;
 
     static final String PROP_START = "${";
     static final String PROP_END = "}";
@@ -73,13 +86,20 @@ public class Compiler {
     private static final String HASH = "#";
     private static final String HASH_PREV = "#-1";
 
+    // States of steps during the scan for cycles
+    private static final byte UNVISITED = 0;
+    private static final byte ON_PATH = 1;
+    private static final byte VISITED = 2;
+
     private final Scenario scenario;
 
-    private final Map<String, Step> steps = Maps.newHashMap();
+    private final Map<String, Step> steps = Maps.newLinkedHashMap();
     private final Map<String, Step> inactiveSteps = Maps.newHashMap();
     private final Map<String, String> requirements = Maps.newHashMap();
     private final Set<Dependency> dependencies = Sets.newHashSet();
     private final List<Integer> clonables = Lists.newArrayList();
+    private final Map<String, Integer> pools = Maps.newHashMap();
+    private final List<String> windows = Lists.newArrayList();
 
     private ProcessFlow processFlow;
     private File logDir;
@@ -112,6 +132,8 @@ public class Compiler {
     public void compile() {
         compile(scenario.definition(), null, null);
         compileRequirements();
+        validateUses();
+        assignIds();
 
         // Produce the process flow
         processFlow = new ProcessFlow(ImmutableSet.copyOf(steps.values()),
@@ -144,6 +166,15 @@ public class Compiler {
         return processFlow;
     }
 
+    /**
+     * Returns the resource pools declared by the scenario.
+     *
+     * @return map of resource pool names to their sizes
+     */
+    public Map<String, Integer> pools() {
+        return ImmutableMap.copyOf(pools);
+    }
+
     /**
      * Returns the log directory where scenario logs should be kept.
      *
@@ -170,6 +201,9 @@ public class Compiler {
         cfg.configurationsAt(IMPORT)
                 .forEach(c -> processImport(c, namespace, parentGroup));
 
+        // Scan all resource pools
+        cfg.configurationsAt(POOL).forEach(this::processPool);
+
         // Scan all steps
         cfg.configurationsAt(STEP)
                 .forEach(c -> processStep(c, namespace, parentGroup));
@@ -215,6 +249,17 @@ public class Compiler {
         });
     }
 
+    /**
+     * Assigns dense numeric ids to all active steps and groups in the order
+     * in which they were registered.
+     */
+    private void assignIds() {
+        int id = 0;
+        for (Step step : steps.values()) {
+            step.setId(id++);
+        }
+    }
+
     /**
      * Processes an import directive.
      *
@@ -249,10 +294,19 @@ public class Compiler {
         String command = expand(cfg.getString(COMMAND, parentGroup != null ? parentGroup.command() : null), true);
         String env = expand(cfg.getString(ENV, parentGroup != null ? parentGroup.env() : null));
         String cwd = expand(cfg.getString(CWD, parentGroup != null ? parentGroup.cwd() : null));
-        int delay = parseInt(expand(cfg.getString(DELAY, parentGroup != null ? "" + parentGroup.delay() : "0")));
-
-        print("step name=%s command=%s env=%s cwd=%s delay=%d", name, command, env, cwd, delay);
-        Step step = new Step(name, command, env, cwd, parentGroup, delay);
+        long delay = delay(cfg, parentGroup);
+
+        print("step name=%s command=%s env=%s cwd=%s delay=%dms", name, command, env, cwd, delay);
+        Step step = new Step(name, command, env, cwd, parentGroup, (int) (delay / 1_000));
+        step.setDelayMillis(delay);
+        step.setTimeoutMillis(timeout(cfg, name));
+        step.setRetries(retries(cfg, parentGroup));
+        step.setRetryDelayMillis(retryDelay(cfg, parentGroup));
+        step.setInputs(paths(cfg, INPUTS));
+        step.setOutputs(paths(cfg, OUTPUTS));
+        step.setUses(uses(cfg, parentGroup));
+        step.setCapture(capture(cfg, parentGroup));
+        step.setEnvironment(environment(cfg, parentGroup));
         registerStep(step, cfg, namespace, parentGroup);
     }
 
@@ -269,13 +323,240 @@ public class Compiler {
         String command = expand(cfg.getString(COMMAND, parentGroup != null ? parentGroup.command() : null), true);
         String env = expand(cfg.getString(ENV, parentGroup != null ? parentGroup.env() : null));
         String cwd = expand(cfg.getString(CWD, parentGroup != null ? parentGroup.cwd() : null));
-        int delay = parseInt(expand(cfg.getString(DELAY, parentGroup != null ? "" + parentGroup.delay() : "0")));
-
-        print("group name=%s command=%s env=%s cwd=%s delay=%d", name, command, env, cwd, delay);
-        Group group = new Group(name, command, env, cwd, parentGroup, delay);
+        long delay = delay(cfg, parentGroup);
+
+        print("group name=%s command=%s env=%s cwd=%s delay=%dms", name, command, env, cwd, delay);
+        Group group = new Group(name, command, env, cwd, parentGroup, (int) (delay / 1_000));
+        group.setDelayMillis(delay);
+        group.setTimeoutMillis(timeout(cfg, name));
+        group.setRetries(retries(cfg, parentGroup));
+        group.setRetryDelayMillis(retryDelay(cfg, parentGroup));
+        group.setUses(uses(cfg, parentGroup));
+        group.setCapture(capture(cfg, parentGroup));
+        group.setEnvironment(environment(cfg, parentGroup));
         if (registerStep(group, cfg, namespace, parentGroup)) {
+            boolean windowed = openWindow(cfg, name);
             compile(cfg, namespace, group);
+            closeWindow(windowed);
+        }
+    }
+
+    /**
+     * Returns the start delay of a step or a group, which may be given in
+     * fractions of a second; this defaults to the delay of the parent group.
+     *
+     * @param cfg         hierarchical definition
+     * @param parentGroup optional parent group
+     * @return delay in millis
+     */
+    private long delay(HierarchicalConfiguration cfg, Group parentGroup) {
+        String delay = expand(cfg.getString(DELAY));
+        if (delay == null) {
+            return parentGroup != null ? parentGroup.delayMillis() : 0;
+        }
+        long millis = Math.round(Double.parseDouble(delay.trim()) * 1_000);
+        checkArgument(millis >= 0, "Delay %s must not be negative", delay);
+        return millis;
+    }
+
+    /**
+     * Returns the timeout of a step or the deadline of a group, which may be
+     * given in fractions of a second; this is not inherited from the parent
+     * group, whose own deadline covers its children.
+     *
+     * @param cfg  hierarchical definition
+     * @param name step or group name
+     * @return timeout in millis; 0 if unlimited
+     */
+    private long timeout(HierarchicalConfiguration cfg, String name) {
+        String timeout = expand(cfg.getString(TIMEOUT));
+        if (timeout == null) {
+            return 0;
         }
+        long millis = Math.round(Double.parseDouble(timeout.trim()) * 1_000);
+        checkArgument(millis > 0, "Timeout of %s must be positive", name);
+        return millis;
+    }
+
+    /**
+     * Returns the number of retries of a failed step; this defaults to the
+     * retries of the parent group, which only apply to its steps.
+     *
+     * @param cfg         hierarchical definition
+     * @param parentGroup optional parent group
+     * @return number of retries
+     */
+    private int retries(HierarchicalConfiguration cfg, Group parentGroup) {
+        String retries = expand(cfg.getString(RETRIES));
+        if (retries == null) {
+            return parentGroup != null ? parentGroup.retries() : 0;
+        }
+        int count = parseInt(retries.trim());
+        checkArgument(count >= 0, "Retries %s must not be negative", retries);
+        return count;
+    }
+
+    /**
+     * Returns the delay before the first retry of a failed step, which may
+     * be given in fractions of a second; this defaults to the retry delay of
+     * the parent group or to one second.
+     *
+     * @param cfg         hierarchical definition
+     * @param parentGroup optional parent group
+     * @return retry delay in millis
+     */
+    private long retryDelay(HierarchicalConfiguration cfg, Group parentGroup) {
+        String delay = expand(cfg.getString(RETRY_DELAY));
+        if (delay == null) {
+            return parentGroup != null ? parentGroup.retryDelayMillis() : DEFAULT_RETRY_DELAY;
+        }
+        long millis = Math.round(Double.parseDouble(delay.trim()) * 1_000);
+        checkArgument(millis >= 0, "Retry delay %s must not be negative", delay);
+        return millis;
+    }
+
+    /**
+     * Returns the comma-separated list of paths given by the specified
+     * attribute of a step; these are not inherited.
+     *
+     * @param cfg       hierarchical definition
+     * @param attribute attribute key
+     * @return list of paths
+     */
+    private List<String> paths(HierarchicalConfiguration cfg, String attribute) {
+        List<String> paths = Lists.newArrayList(split(expand(cfg.getString(attribute))));
+        paths.removeIf(String::isEmpty);
+        return paths;
+    }
+
+    /**
+     * Returns the output capture of a step or a group; this defaults to the
+     * output capture of the parent group.
+     *
+     * @param cfg         hierarchical definition
+     * @param parentGroup optional parent group
+     * @return output capture; null if not specified
+     */
+    private Coordinator.Capture capture(HierarchicalConfiguration cfg, Group parentGroup) {
+        String capture = expand(cfg.getString(CAPTURE));
+        if (capture == null) {
+            return parentGroup != null ? parentGroup.capture() : null;
+        }
+        return Coordinator.Capture.valueOf(capture.trim().toUpperCase());
+    }
+
+    /**
+     * Returns the inline environment variables of a step or a group, which
+     * add to or override those of the parent group.
+     *
+     * @param cfg         hierarchical definition
+     * @param parentGroup optional parent group
+     * @return map of environment variable names to values
+     */
+    private Map<String, String> environment(HierarchicalConfiguration cfg, Group parentGroup) {
+        Map<String, String> environment = Maps.newHashMap();
+        if (parentGroup != null) {
+            environment.putAll(parentGroup.environment());
+        }
+        cfg.configurationsAt(ENVIRONMENT).forEach(c -> {
+            String name = checkNotNull(expand(c.getString(NAME)),
+                                       "Environment variable must specify 'name'");
+            environment.put(name, nullToEmpty(expand(c.getString(VALUE))));
+        });
+        return environment;
+    }
+
+    /**
+     * Processes a resource pool declaration.
+     *
+     * @param cfg hierarchical definition
+     */
+    private void processPool(HierarchicalConfiguration cfg) {
+        String name = checkNotNull(expand(cfg.getString(NAME)),
+                                   "Pool must specify 'name'");
+        int size = parseInt(checkNotNull(expand(cfg.getString(SIZE)),
+                                         "Pool %s must specify 'size'", name));
+        print("pool name=%s size=%d", name, size);
+        checkState(!pools.containsKey(name), "Pool %s already exists", name);
+        checkArgument(size > 0, "Pool %s must have positive size", name);
+        pools.put(name, size);
+    }
+
+    /**
+     * Returns the resource tokens used by a step or a group; these default
+     * to the tokens used by the parent group.
+     *
+     * @param cfg         hierarchical definition
+     * @param parentGroup optional parent group
+     * @return map of resource pool names to token counts
+     */
+    private Map<String, Integer> uses(HierarchicalConfiguration cfg, Group parentGroup) {
+        String uses = expand(cfg.getString(USES));
+        Map<String, Integer> tokens = Maps.newHashMap();
+        if (uses == null) {
+            if (parentGroup != null) {
+                tokens.putAll(parentGroup.uses());
+            }
+        } else {
+            for (String use : split(uses)) {
+                String[] fields = use.split(":");
+                int count = fields.length > 1 ? parseInt(fields[1].trim()) : 1;
+                checkArgument(count > 0, "Resource use %s must be positive", use);
+                tokens.merge(fields[0].trim(), count, Integer::sum);
+            }
+        }
+
+        // Each enclosing concurrency window admits its steps one token apiece
+        windows.forEach(window -> tokens.put(window, 1));
+        return ImmutableMap.copyOf(tokens);
+    }
+
+    /**
+     * Opens a concurrency window for the steps compiled within the given
+     * container, if it specifies the 'maxParallel' attribute. The window is
+     * backed by a synthesized resource pool of the given size, a token of
+     * which is used by each step within the window.
+     *
+     * @param cfg   hierarchical definition of the container
+     * @param label container label
+     * @return true if window was opened
+     */
+    private boolean openWindow(HierarchicalConfiguration cfg, String label) {
+        String maxParallel = expand(cfg.getString(MAX_PARALLEL));
+        if (maxParallel == null) {
+            return false;
+        }
+        int size = parseInt(maxParallel.trim());
+        checkArgument(size > 0, "Group %s must have positive maxParallel", label);
+        String window = String.format("%s#%d", label, pools.size());
+        print("window name=%s size=%d", window, size);
+        pools.put(window, size);
+        windows.add(window);
+        return true;
+    }
+
+    /**
+     * Closes the innermost concurrency window, if one was opened.
+     *
+     * @param windowed true if window was opened
+     */
+    private void closeWindow(boolean windowed) {
+        if (windowed) {
+            windows.remove(windows.size() - 1);
+        }
+    }
+
+    /**
+     * Validates that all steps use only declared resource pools and never
+     * more tokens than a pool holds.
+     */
+    private void validateUses() {
+        steps.values().forEach(step -> step.uses().forEach((pool, count) -> {
+            Integer size = pools.get(pool);
+            checkState(size != null, "Step %s uses unknown pool %s", step.name(), pool);
+            checkState(count <= size, "Step %s uses %s tokens of pool %s of size %s",
+                       step.name(), count, pool, size);
+        }));
     }
 
     /**
@@ -322,6 +603,7 @@ public class Compiler {
         String var = cfg.getString(VAR);
         print("parallel var=%s", var);
 
+        boolean windowed = openWindow(cfg, "parallel:" + var);
         int i = 1;
         while (condition(var, i).length() > 0) {
             clonables.add(0, i);
@@ -329,6 +611,7 @@ public class Compiler {
             clonables.remove(0);
             i++;
         }
+        closeWindow(windowed);
     }
 
     /**
@@ -345,6 +628,7 @@ public class Compiler {
         String ends = cfg.getString(ENDS);
         print("sequential var=%s", var);
 
+        boolean windowed = openWindow(cfg, "sequential:" + var);
         int i = 1;
         while (condition(var, i).length() > 0) {
             clonables.add(0, i);
@@ -355,6 +639,7 @@ public class Compiler {
             clonables.remove(0);
             i++;
         }
+        closeWindow(windowed);
     }
 
     /**
@@ -517,21 +802,73 @@ public class Compiler {
     }
 
     /**
-     * Scans the process flow graph for cyclic dependencies.
+     * Scans the process flow graph for cyclic dependencies in a single
+     * depth-first pass, which visits each step and dependency only once.
+     * A dependency leading back to a step on the current path closes a
+     * cycle, which is then reported in full.
      */
     private void scanForCycles() {
-        DepthFirstSearch<Step, Dependency> dfs = new DepthFirstSearch<>();
-        // Use a brute-force method of searching paths from all vertices.
-        processFlow().getVertexes().forEach(s -> {
-            DepthFirstSearch<Step, Dependency>.SpanningTreeResult r =
-                    (DepthFirstSearch<Step, Dependency>.SpanningTreeResult)
-                            dfs.search(processFlow, s, null, null, ALL_PATHS);
-            r.edges().forEach((e, et) -> checkArgument(et != BACK_EDGE,
-                                                       "Process flow has a cycle involving dependency from %s to %s",
-                                                       e.src().name, e.dst().name));
+        int count = steps.size();
+        Step[] byId = new Step[count];
+        Dependency[][] requirements = new Dependency[count][];
+        steps.values().forEach(step -> {
+            byId[step.id()] = step;
+            requirements[step.id()] = processFlow.getEdgesFrom(step).toArray(new Dependency[0]);
         });
+
+        // Explicit stack of the current path, with the next requirement to explore for each
+        byte[] state = new byte[count];
+        int[] path = new int[count];
+        int[] next = new int[count];
+        for (int root = 0; root < count; root++) {
+            if (state[root] != UNVISITED) {
+                continue;
+            }
+            int depth = 0;
+            path[0] = root;
+            next[0] = 0;
+            state[root] = ON_PATH;
+            while (depth >= 0) {
+                int id = path[depth];
+                if (next[depth] < requirements[id].length) {
+                    int dst = requirements[id][next[depth]++].dst().id();
+                    if (state[dst] == ON_PATH) {
+                        throw new IllegalArgumentException("Process flow has a cycle: " +
+                                                                   cycle(byId, path, depth, dst));
+                    } else if (state[dst] == UNVISITED) {
+                        state[dst] = ON_PATH;
+                        path[++depth] = dst;
+                        next[depth] = 0;
+                    }
+                } else {
+                    state[id] = VISITED;
+                    depth--;
+                }
+            }
+        }
     }
 
+    /**
+     * Describes the cycle formed by the dependency from the step at the
+     * given depth of the path back to the specified step on that path.
+     *
+     * @param byId  steps indexed by their ids
+     * @param path  ids of the steps on the current path
+     * @param depth depth of the last step on the path
+     * @param dst   id of the step the cycle closes on
+     * @return chain of step names, each requiring the next one
+     */
+    private static String cycle(Step[] byId, int[] path, int depth, int dst) {
+        int start = depth;
+        while (path[start] != dst) {
+            start--;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = start; i <= depth; i++) {
+            sb.append(byId[path[i]].name()).append(" -> ");
+        }
+        return sb.append(byId[dst].name()).toString();
+    }
 
     /**
      * Prints formatted output.
@@ -16,22 +16,33 @@
 package org.onlab.stc;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Predicate;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
-import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.onlab.stc.Compiler.PROP_END;
 import static org.onlab.stc.Compiler.PROP_START;
 import static org.onlab.stc.Coordinator.Directive.*;
@@ -42,35 +53,183 @@ import static org.onlab.stc.Coordinator.Status.*;
  */
 public class Coordinator {
 
-    private static final int MAX_THREADS = 64;
+    private static final int DEFAULT_CONCURRENCY = 64;
 
-    private final ExecutorService executor = newFixedThreadPool(MAX_THREADS);
+    // Timer shared by all coordinators for releasing steps after their delay
+    // and for pacing built-in steps
+    static final ScheduledExecutorService TIMER =
+            newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "stc-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
 
     private final ProcessFlow processFlow;
 
+    // Steps, their dependents and their requirements indexed by step id
+    private final Step[] steps;
+    private final Dependency[][] dependents;
+    private final Dependency[][] requirements;
+
+    // Steps to be run when running a range of steps; null to run all steps
+    private BitSet scope;
+    private int remainingInScope;
+
+    // Dependency countdowns and ready queue, indexed by step id
+    private final int[] pendingDependencies;
+    private final int[] pendingChildren;
+    private final boolean[] blocked;
+    private final boolean[] failedChildren;
+    private final Queue<Step> ready = new ArrayDeque<>();
+    private boolean executingReady = false;
+
+    // Steps ready to be started, in scheduling order
+    private final PriorityQueue<Step> runnable;
+    private final long[] sequence;
+    private final long[] ranks;
+    private final long[] startTimes;
+    private final StepProcessor[] processors;
+    private final boolean[] expired;
+    private final boolean[] cached;
+    private final int[] failedAttempts;
+    private final long[] wastedMillis;
+    private final ScheduledFuture<?>[] deadlines;
+    private long nextSequence = 0;
+    private int runningCount = 0;
+    private int concurrency = DEFAULT_CONCURRENCY;
+    private Capture capture = Capture.PIPE;
+    private Launcher launcher = Launcher.DIRECT;
+    private final LauncherPool launchers = new LauncherPool();
+    private final EnvFiles envFiles = new EnvFiles();
+    private StepCache cache;
+
+    // Whether step output may export variables used by step commands
+    private final boolean scrapesOutput;
+    private volatile boolean listenersWantOutput = false;
+    private Scheduling scheduling = Scheduling.FIFO;
+    private long predictedMakespan = -1;
+
+    // Resource pool tokens available for admission of runnable steps
+    private final Map<String, Integer> availableTokens = Maps.newHashMap();
+    private final long[] resourceWaitStarts;
+    private final long[] resourceWaits;
+
     private final StepProcessListener delegate;
-    private final CountDownLatch latch;
+    private volatile CompletableFuture<RunResult> completion = new CompletableFuture<>();
+    private boolean completing = false;
     private final ScenarioStore store;
 
+    private static final String PROP_PREFIX = "@stc ";
+
+    // Reason recorded for steps that ran out of time
+    static final String TIMEOUT = "timeout";
+
+    // Reason recorded for steps whose result was restored from the cache
+    static final String CACHED = "cached";
     private static final Pattern PROP_ERE = Pattern.compile("^@stc ([a-zA-Z0-9_.]+)=(.*$)");
     private final Map<String, String> properties = Maps.newConcurrentMap();
 
     private final Set<StepProcessListener> listeners = Sets.newConcurrentHashSet();
     private File logDir;
+    private final StepLogs logs;
     private boolean haltOnError = false;
+    private boolean cancelled = false;
+
+    // Cap on the doubling of retry delays
+    private static final int MAX_BACKOFF_SHIFT = 10;
+
+    // Time given to step processes to exit when asked to before they are killed
+    static final long CANCEL_GRACE_MILLIS = 2_000;
 
     /**
      * Represents action to be taken on a test step.
      */
     public enum Directive {
-        NOOP, RUN, SKIP
+        NOOP, RUN, DELAY, SKIP
     }
 
     /**
      * Represents processor state.
      */
     public enum Status {
-        WAITING, IN_PROGRESS, SUCCEEDED, FAILED, SKIPPED
+        WAITING, DELAYED, IN_PROGRESS, SUCCEEDED, FAILED, SKIPPED, CANCELLED, RETRYING
+    }
+
+    /**
+     * Represents the means by which the output of step processes is
+     * captured in their logs.
+     */
+    public enum Capture {
+        /**
+         * Read output through a pipe, line by line, and write it to the log.
+         */
+        PIPE,
+
+        /**
+         * Have the operating system redirect output straight into the log,
+         * which is only tailed when its content is actually needed.
+         */
+        FILE
+    }
+
+    /**
+     * Represents the means by which step processes are launched.
+     */
+    public enum Launcher {
+        /**
+         * Fork each step process from the coordinator itself.
+         */
+        DIRECT,
+
+        /**
+         * Have step processes forked by a pool of long-lived launcher
+         * workers, started up front for each distinct combination of step
+         * environment and working directory. Output of such steps is always
+         * redirected straight into their logs.
+         */
+        POOL
+    }
+
+    /**
+     * Represents policy for ordering steps that are ready to be run.
+     */
+    public enum Scheduling {
+        /**
+         * Dispatch steps in the order in which they became ready.
+         */
+        FIFO,
+
+        /**
+         * Dispatch steps with the longest remaining downstream path first,
+         * weighted by step durations observed in previous runs.
+         */
+        CRITICAL_PATH
+    }
+
+    /**
+     * Represents policy for making persisted step events durable.
+     */
+    public enum Durability {
+        /**
+         * Leave events buffered until the buffer fills up or the run ends.
+         */
+        NONE,
+
+        /**
+         * Hand each batch of events to the operating system.
+         */
+        FLUSH,
+
+        /**
+         * Force each batch of events to the storage device.
+         */
+        FSYNC,
+
+        /**
+         * Hand each batch to the operating system and force it to the
+         * storage device at most once per second.
+         */
+        INTERVAL
     }
 
     /**
@@ -84,8 +243,36 @@ public class Coordinator {
         this.processFlow = processFlow;
         this.logDir = logDir;
         this.store = new ScenarioStore(processFlow, logDir, scenario.name());
+        this.logs = new StepLogs(logDir);
         this.delegate = new Delegate();
-        this.latch = new CountDownLatch(1);
+
+        Set<Step> vertexes = processFlow.getVertexes();
+        this.steps = new Step[vertexes.size()];
+        this.dependents = new Dependency[vertexes.size()][];
+        this.requirements = new Dependency[vertexes.size()][];
+        vertexes.forEach(step -> {
+            steps[step.id()] = step;
+            dependents[step.id()] = processFlow.getEdgesTo(step).toArray(new Dependency[0]);
+            requirements[step.id()] = processFlow.getEdgesFrom(step).toArray(new Dependency[0]);
+        });
+        this.pendingDependencies = new int[steps.length];
+        this.pendingChildren = new int[steps.length];
+        this.blocked = new boolean[steps.length];
+        this.failedChildren = new boolean[steps.length];
+        this.sequence = new long[steps.length];
+        this.ranks = new long[steps.length];
+        this.startTimes = new long[steps.length];
+        this.processors = new StepProcessor[steps.length];
+        this.expired = new boolean[steps.length];
+        this.cached = new boolean[steps.length];
+        this.failedAttempts = new int[steps.length];
+        this.wastedMillis = new long[steps.length];
+        this.deadlines = new ScheduledFuture<?>[steps.length];
+        this.resourceWaitStarts = new long[steps.length];
+        this.resourceWaits = new long[steps.length];
+        this.scrapesOutput = Arrays.stream(steps)
+                .anyMatch(step -> step.command() != null && step.command().contains(PROP_START));
+        this.runnable = new PriorityQueue<>(Math.max(1, steps.length), this::compareRunnable);
     }
 
     /**
@@ -97,30 +284,354 @@ public class Coordinator {
         this.haltOnError = haltOnError;
     }
 
-    private boolean shouldStop() {
-        return haltOnError && store.hasFailures();
+    /**
+     * Sets the maximum number of steps whose processes may be running at
+     * the same time.
+     *
+     * @param concurrency concurrency limit
+     */
+    public synchronized void setConcurrency(int concurrency) {
+        checkArgument(concurrency > 0, "Concurrency limit must be positive");
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Sets the means by which output is captured for steps that do not
+     * specify their own.
+     *
+     * @param capture default output capture
+     */
+    public void setCapture(Capture capture) {
+        this.capture = checkNotNull(capture);
+    }
+
+    /**
+     * Sets the means by which step processes are launched.
+     *
+     * @param launcher step process launcher
+     */
+    public void setLauncher(Launcher launcher) {
+        this.launcher = checkNotNull(launcher);
+    }
+
+    /**
+     * Sets the directory of the cache of step results. Steps which declare
+     * their inputs or outputs are not executed if a result of theirs with
+     * the same command, environment and inputs is found in the cache; the
+     * cached outputs and log are restored instead.
+     *
+     * @param dir cache directory; null to disable caching
+     */
+    public void setCacheDir(File dir) {
+        this.cache = dir != null ? new StepCache(dir) : null;
+    }
+
+    /**
+     * Returns a summary of step cache hits and misses during the run.
+     *
+     * @return cache statistics; null if the cache was not consulted
+     */
+    public String cacheStatistics() {
+        return cache != null ? cache.stats() : null;
+    }
+
+    /**
+     * Enables or disables compression of step logs as they are written.
+     * Logs of steps whose output is redirected straight to a file are never
+     * compressed.
+     *
+     * @param compress true to compress step logs
+     */
+    public void setCompressLogs(boolean compress) {
+        logs.setCompress(compress);
+    }
+
+    /**
+     * Sets the resource pools from which steps acquire tokens before they
+     * can be run. Steps are run only when all tokens they use are available
+     * and they release them upon completion.
+     *
+     * @param pools map of resource pool names to pool sizes
+     */
+    public synchronized void setResourcePools(Map<String, Integer> pools) {
+        availableTokens.clear();
+        availableTokens.putAll(pools);
+    }
+
+    /**
+     * Returns the time the specified step spent waiting for resource pool
+     * tokens after it became ready to run.
+     *
+     * @param step test step
+     * @return number of millis spent waiting for resources
+     */
+    public synchronized long getResourceWait(Step step) {
+        return resourceWaits[step.id()];
+    }
+
+    /**
+     * Sets the policy for ordering steps that are ready to be run.
+     *
+     * @param scheduling scheduling policy
+     */
+    public void setScheduling(Scheduling scheduling) {
+        this.scheduling = checkNotNull(scheduling, "Scheduling cannot be null");
+    }
+
+    /**
+     * Sets the durability policy used when persisting step events.
+     *
+     * @param durability durability policy
+     */
+    public void setDurability(Durability durability) {
+        store.setDurability(checkNotNull(durability, "Durability cannot be null"));
+    }
+
+    /**
+     * Waits until all step events recorded so far have been persisted.
+     */
+    public void flush() {
+        store.flush();
+    }
+
+    /**
+     * Returns a list of run statistics lines suitable for reporting.
+     *
+     * @return list of statistics
+     */
+    public synchronized List<String> statistics() {
+        Step longest = null;
+        long total = 0;
+        int retries = 0;
+        for (Step step : steps) {
+            total += resourceWaits[step.id()];
+            retries += failedAttempts[step.id()];
+            if (longest == null || resourceWaits[step.id()] > resourceWaits[longest.id()]) {
+                longest = step;
+            }
+        }
+
+        // Step whose failed attempts wasted the most time across runs
+        String flakiest = null;
+        StepHistory.Flakiness worst = null;
+        for (Map.Entry<String, StepHistory.Flakiness> entry : store.history().flakiness().entrySet()) {
+            if (entry.getValue().wastedMillis() > (worst != null ? worst.wastedMillis() : 0)) {
+                flakiest = entry.getKey();
+                worst = entry.getValue();
+            }
+        }
+
+        return ImmutableList.of(store.stats(), logs.stats(), envFiles.stats(),
+                                String.format("schedule: %s; predicted makespan %s; actual makespan %.1fs",
+                                              scheduling, predictedMakespan < 0 ? "unknown" :
+                                                      String.format("%.1fs", predictedMakespan / 1e3),
+                                              duration() / 1e3),
+                                String.format("resources: waited %.1fs in total; longest wait %.1fs by %s",
+                                              total / 1e3,
+                                              longest != null ? resourceWaits[longest.id()] / 1e3 : 0.0,
+                                              longest != null && total > 0 ? longest.name() : "none"),
+                                String.format("retries: %d this run; most time wasted by %s", retries,
+                                              worst == null ? "none" :
+                                                      String.format("%s: %.1fs over %d runs; flake rate %.0f%%",
+                                                                    flakiest, worst.wastedMillis() / 1e3,
+                                                                    worst.runs(), worst.rate() * 100)));
+    }
+
+    /**
+     * Returns the in-memory tail of the log of the specified failed step.
+     * Tails of steps that did not fail are not retained.
+     *
+     * @param step test step
+     * @return log tail; null if none is retained
+     */
+    LogTail getLogTail(Step step) {
+        return logs.tail(step);
+    }
+
+    private synchronized boolean shouldStop() {
+        return cancelled || haltOnError && store.hasFailures();
+    }
+
+    /**
+     * Cancels the run: no further steps are dispatched and all running step
+     * processes are asked to terminate, and killed if they do not do so
+     * within a grace period. Steps that were in flight are marked as
+     * cancelled; steps yet to start remain waiting. The run completes as
+     * halted shortly after the grace period at the latest.
+     */
+    public void cancel() {
+        List<StepProcessor> inFlight = Lists.newArrayList();
+        synchronized (this) {
+            if (cancelled || completion.isDone()) {
+                return;
+            }
+            cancelled = true;
+            for (StepProcessor processor : processors) {
+                if (processor != null) {
+                    inFlight.add(processor);
+                }
+            }
+        }
+        inFlight.forEach(processor -> processor.cancel(CANCEL_GRACE_MILLIS));
+        completeIfNeeded();
     }
 
     /**
      * Resets any previously accrued status and events.
      */
-    public void reset() {
+    public synchronized void reset() {
+        scope = null;
         store.reset();
     }
 
     /**
      * Resets all previously accrued status and events for steps that lie
      * in the range between the steps or groups whose names match the specified
-     * patterns.
+     * patterns. The range spans the matching starting steps and everything
+     * that depends on them, up to the matching ending steps and everything
+     * they depend on, along with the groups enclosing such steps. An empty
+     * list of patterns leaves that end of the range open. Only steps within
+     * the range are run from then on; all other steps retain their status.
      *
      * @param runFromPatterns list of starting step patterns
      * @param runToPatterns   list of ending step patterns
      */
-    public void reset(List<String> runFromPatterns, List<String> runToPatterns) {
+    public synchronized void reset(List<String> runFromPatterns, List<String> runToPatterns) {
         List<Step> fromSteps = matchSteps(runFromPatterns);
         List<Step> toSteps = matchSteps(runToPatterns);
 
-        // FIXME: implement this
+        BitSet range = new BitSet(steps.length);
+        range.set(0, steps.length);
+        if (fromSteps != null) {
+            range.and(reachable(fromSteps, true, true));
+        }
+        if (toSteps != null) {
+            range.and(reachable(toSteps, false, true));
+        }
+        resetRange(range);
+    }
+
+    /**
+     * Resets status and events of the steps that have yet to succeed, i.e.
+     * those that failed, got skipped or cancelled, were still in progress
+     * or never got started, and of everything that depends on them. Steps
+     * that succeeded before, and their logs, are left intact, so that only
+     * the remaining steps are run from then on.
+     */
+    public synchronized void resume() {
+        resetFrontier(status -> status != SUCCEEDED);
+    }
+
+    /**
+     * Resets status and events of the steps that failed, got skipped or
+     * cancelled, and of everything that depends on them, leaving all other
+     * steps and their logs intact, so that only those steps are re-run from
+     * then on.
+     */
+    public synchronized void rerunFailed() {
+        resetFrontier(status -> status == FAILED || status == SKIPPED || status == CANCELLED);
+    }
+
+    /**
+     * Resets the steps whose status matches the specified predicate and the
+     * steps downstream of them. Groups are matched on their own account,
+     * rather than on behalf of all their children.
+     *
+     * @param predicate status predicate
+     */
+    private void resetFrontier(Predicate<Status> predicate) {
+        List<Step> frontier = Lists.newArrayList();
+        for (Step step : steps) {
+            if (predicate.test(store.getStatus(step))) {
+                frontier.add(step);
+            }
+        }
+        resetRange(reachable(frontier, true, false));
+    }
+
+    /**
+     * Resets the specified range of steps, along with the groups enclosing
+     * them, and limits subsequent runs to that range.
+     *
+     * @param range set of ids of the steps to reset
+     */
+    private void resetRange(BitSet range) {
+        // Steps in range can only run within their enclosing groups
+        for (int id = range.nextSetBit(0); id >= 0; id = range.nextSetBit(id + 1)) {
+            for (Group group = steps[id].group(); group != null && !range.get(group.id());
+                 group = group.group()) {
+                range.set(group.id());
+            }
+        }
+
+        scope = range;
+        store.reset(range);
+        range.stream().forEach(id -> logs.discardTail(steps[id]));
+    }
+
+    /**
+     * Returns the set of steps reachable from the specified steps, including
+     * the steps themselves, either downstream, i.e. by following dependents,
+     * or upstream, i.e. by following requirements. Groups reached that way
+     * are reached whole, i.e. along with all their children. Downstream,
+     * the groups enclosing the steps reached are reached as well, since
+     * they complete anew, but not their other children.
+     *
+     * @param roots      steps to start from
+     * @param downstream true to follow dependents; false to follow requirements
+     * @param wholeRoots true if groups among the roots are to be reached whole
+     * @return set of reachable step ids
+     */
+    private BitSet reachable(List<Step> roots, boolean downstream, boolean wholeRoots) {
+        BitSet reached = new BitSet(steps.length);
+        BitSet whole = new BitSet(steps.length);
+        Deque<Step> queue = new ArrayDeque<>();
+        roots.forEach(step -> reach(step, wholeRoots, reached, whole, queue));
+        Step step;
+        while ((step = queue.poll()) != null) {
+            for (Dependency dependency : downstream ? dependents[step.id()] : requirements[step.id()]) {
+                reach(downstream ? dependency.src() : dependency.dst(), true, reached, whole, queue);
+            }
+            if (step instanceof Group && whole.get(step.id())) {
+                for (Step child : ((Group) step).children()) {
+                    reach(child, true, reached, whole, queue);
+                }
+            }
+            if (downstream && step.group() != null) {
+                reach(step.group(), false, reached, whole, queue);
+            }
+        }
+        return reached;
+    }
+
+    // Notes the specified step as reached and queues it, unless it has been already
+    private static void reach(Step step, boolean isWhole, BitSet reached, BitSet whole, Deque<Step> queue) {
+        int id = step.id();
+        if (!reached.get(id) || isWhole && !whole.get(id)) {
+            reached.set(id);
+            whole.set(id, isWhole || whole.get(id));
+            queue.add(step);
+        }
+    }
+
+    /**
+     * Indicates whether the specified step is to be run, i.e. whether it
+     * lies within the range of steps being run, if any.
+     *
+     * @param step step or group
+     * @return true if the step is in scope
+     */
+    private boolean inScope(Step step) {
+        return scope == null || scope.get(step.id());
+    }
+
+    /**
+     * Indicates whether all steps in scope have completed.
+     *
+     * @return true if the run is complete
+     */
+    private synchronized boolean isComplete() {
+        return scope == null ? store.isComplete() : remainingInScope == 0;
     }
 
     /**
@@ -133,20 +644,27 @@ public class Coordinator {
     }
 
     /**
-     * Returns a list of steps that match the specified list of patterns.
+     * Returns a list of steps whose names match any of the specified
+     * patterns. The patterns are combined and compiled only once.
      *
-     * @param runToPatterns list of patterns
-     * @return list of steps with matching names
+     * @param patterns list of patterns
+     * @return list of steps with matching names; null if there are no
+     * patterns at all
      */
-    private List<Step> matchSteps(List<String> runToPatterns) {
+    private List<Step> matchSteps(List<String> patterns) {
+        List<String> alternatives = Lists.newArrayList();
+        patterns.stream().map(String::trim).filter(p -> !p.isEmpty())
+                .forEach(p -> alternatives.add("(?:" + p + ")"));
+        if (alternatives.isEmpty()) {
+            return null;
+        }
+        Matcher matcher = Pattern.compile(String.join("|", alternatives)).matcher("");
         ImmutableList.Builder<Step> builder = ImmutableList.builder();
-        store.getSteps().forEach(step -> {
-            runToPatterns.forEach(p -> {
-                if (step.name().matches(p)) {
-                    builder.add(step);
-                }
-            });
-        });
+        for (Step step : steps) {
+            if (matcher.reset(step.name()).matches()) {
+                builder.add(step);
+            }
+        }
         return builder.build();
     }
 
@@ -154,7 +672,31 @@ public class Coordinator {
      * Starts execution of the process flow graph.
      */
     public void start() {
+        if (completion.isDone()) {
+            completion = new CompletableFuture<>();
+        }
+        synchronized (this) {
+            cancelled = false;
+            completing = false;
+        }
+        prepare();
+        computeRanks();
+        envFiles.clear();
+        if (launcher == Launcher.POOL) {
+            launchers.prefork(processFlow.getVertexes());
+        }
         executeRoots(null);
+        completeIfNeeded();
+    }
+
+    /**
+     * Returns a future that gets completed as soon as the last step of the
+     * process flow completes, or as soon as the run is halted on error.
+     *
+     * @return future run result
+     */
+    public CompletableFuture<RunResult> completion() {
+        return completion;
     }
 
     /**
@@ -164,10 +706,58 @@ public class Coordinator {
      * @throws InterruptedException if interrupted while waiting for completion
      */
     public int waitFor() throws InterruptedException {
-        while (!store.isComplete() && !shouldStop()) {
-            latch.await(1, TimeUnit.SECONDS);
+        try {
+            return completion.get().exitCode();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to complete process flow", e.getCause());
+        }
+    }
+
+    /**
+     * Completes the run, if all steps have completed or if the run should
+     * be halted and no step processes remain running. In the latter case,
+     * steps that were in flight, but not running, are marked as cancelled.
+     * The outcome is decided while holding the coordinator lock, but the
+     * store is flushed and the launchers closed only after releasing it.
+     */
+    private void completeIfNeeded() {
+        CompletableFuture<RunResult> done;
+        RunResult result;
+        synchronized (this) {
+            boolean halted = shouldStop();
+            if (completing || completion.isDone() || !(halted ? runningCount == 0 : isComplete())) {
+                return;
+            }
+            if (halted) {
+                cancelRemaining();
+            }
+            completing = true;
+            done = completion;
+            result = new RunResult(store.getCount(SUCCEEDED),
+                                   store.getCount(FAILED),
+                                   store.getCount(SKIPPED),
+                                   store.getCount(CANCELLED),
+                                   halted && (!isComplete() || store.getCount(CANCELLED) > 0),
+                                   duration());
+        }
+        store.flush();
+        launchers.close();
+        done.complete(result);
+    }
+
+    /**
+     * Marks steps and groups that are delayed, queued or in progress as
+     * cancelled.
+     */
+    private synchronized void cancelRemaining() {
+        runnable.clear();
+        for (Step step : steps) {
+            Status status = store.getStatus(step);
+            if (status == DELAYED || status == IN_PROGRESS || status == RETRYING) {
+                store.markComplete(step, CANCELLED);
+                listeners.forEach(listener -> listener.onCompletion(step, CANCELLED));
+            }
         }
-        return store.hasFailures() ? 1 : 0;
     }
 
     /**
@@ -198,6 +788,16 @@ public class Coordinator {
         return store.getStatus(step);
     }
 
+    /**
+     * Returns the number of test steps and groups in the specified status.
+     *
+     * @param status step status
+     * @return number of steps
+     */
+    public int getCount(Status status) {
+        return store.getCount(status);
+    }
+
     /**
      * Adds the specified listener.
      *
@@ -205,6 +805,7 @@ public class Coordinator {
      */
     public void addListener(StepProcessListener listener) {
         listeners.add(checkNotNull(listener, "Listener cannot be null"));
+        listenersWantOutput = listeners.stream().anyMatch(StepProcessListener::wantsOutput);
     }
 
     /**
@@ -214,6 +815,61 @@ public class Coordinator {
      */
     public void removeListener(StepProcessListener listener) {
         listeners.remove(checkNotNull(listener, "Listener cannot be null"));
+        listenersWantOutput = listeners.stream().anyMatch(StepProcessListener::wantsOutput);
+    }
+
+    /**
+     * Prepares the dependency countdowns for all steps based on their
+     * present status. Each step tracks the number of its dependencies that
+     * have yet to complete and whether any of its hard dependencies failed
+     * or got skipped; each group tracks the number of its children that
+     * have yet to complete and whether any of them failed.
+     */
+    private synchronized void prepare() {
+        ready.clear();
+        Arrays.fill(pendingDependencies, 0);
+        Arrays.fill(pendingChildren, 0);
+        Arrays.fill(blocked, false);
+        Arrays.fill(failedChildren, false);
+        Arrays.fill(expired, false);
+        Arrays.fill(cached, false);
+        Arrays.fill(failedAttempts, 0);
+        Arrays.fill(wastedMillis, 0);
+        for (Step step : steps) {
+            cancelDeadline(step);
+        }
+
+        remainingInScope = 0;
+        for (Step step : steps) {
+            int id = step.id();
+            if (inScope(step) && !isDone(store.getStatus(step))) {
+                remainingInScope++;
+            }
+            for (Dependency dependency : requirements[id]) {
+                Status status = store.getStatus(dependency.dst());
+                if (!isDone(status)) {
+                    // Requirements outside of the range being run are not waited for
+                    if (inScope(dependency.dst())) {
+                        pendingDependencies[id]++;
+                    }
+                } else if (!dependency.isSoft() &&
+                        (status == FAILED || status == SKIPPED || status == CANCELLED)) {
+                    blocked[id] = true;
+                }
+            }
+
+            Group group = step.group();
+            if (group != null) {
+                Status status = store.getStatus(step);
+                if (!isDone(status)) {
+                    if (inScope(step)) {
+                        pendingChildren[group.id()]++;
+                    }
+                } else if (status == FAILED) {
+                    failedChildren[group.id()] = true;
+                }
+            }
+        }
     }
 
     /**
@@ -222,15 +878,44 @@ public class Coordinator {
      *
      * @param group optional group
      */
-    private void executeRoots(Group group) {
-        // FIXME: add ability to skip past completed steps
-        Set<Step> steps =
-                group != null ? group.children() : processFlow.getVertexes();
-        steps.forEach(step -> {
-            if (processFlow.getEdgesFrom(step).isEmpty() && step.group() == group) {
+    private synchronized void executeRoots(Group group) {
+        // When limited to a range, start from its frontier, skipping past the steps outside of it
+        if (group != null) {
+            group.children().forEach(step -> addIfRoot(step, group));
+        } else if (scope != null) {
+            scope.stream().forEach(id -> addIfRoot(steps[id], null));
+        } else {
+            Arrays.stream(steps).forEach(step -> addIfRoot(step, null));
+        }
+        executeReady();
+    }
+
+    // Adds the specified step to the ready queue if it is a root within the given group
+    private void addIfRoot(Step step, Group group) {
+        if (inScope(step) && (pendingDependencies[step.id()] == 0 || blocked[step.id()]) &&
+                step.group() == group) {
+            ready.add(step);
+        }
+    }
+
+    /**
+     * Executes steps from the ready queue until it is exhausted. Steps made
+     * ready while the queue is being processed, e.g. by propagation of
+     * skipped status, are appended to the queue rather than recursed into.
+     */
+    private synchronized void executeReady() {
+        if (executingReady) {
+            return;
+        }
+        executingReady = true;
+        try {
+            Step step;
+            while ((step = ready.poll()) != null) {
                 execute(step);
             }
-        });
+        } finally {
+            executingReady = false;
+        }
     }
 
     /**
@@ -245,29 +930,382 @@ public class Coordinator {
             if (step instanceof Group) {
                 Group group = (Group) step;
                 delegate.onStart(group, null);
+                if (group.timeoutMillis() > 0) {
+                    deadlines[group.id()] = TIMER.schedule(() -> deadlineElapsed(group),
+                                                           group.timeoutMillis(), MILLISECONDS);
+                }
                 executeRoots(group);
+                completeParentIfNeeded(group);
             } else {
-                executor.execute(new StepProcessor(step, logDir, delegate,
-                                                   substitute(step.command())));
+                enqueue(step);
             }
+        } else if (directive == DELAY) {
+            store.markDelayed(step);
+            delegate.onDelay(step, step.delayMillis());
+            TIMER.schedule(() -> delayElapsed(step), step.delayMillis(), MILLISECONDS);
         } else if (directive == SKIP) {
             skipStep(step);
         }
     }
 
+    /**
+     * Starts the specified step, whose delay has elapsed, unless the
+     * scenario has been reset in the meantime.
+     *
+     * @param step step to start
+     */
+    private synchronized void delayElapsed(Step step) {
+        if (store.getStatus(step) == DELAYED) {
+            store.markStarted(step);
+            enqueue(step);
+        }
+    }
+
+    /**
+     * Indicates whether the specified step, whose process just failed,
+     * is to be re-run.
+     *
+     * @param step test step
+     * @return true if the step has retries left
+     */
+    private synchronized boolean shouldRetry(Step step) {
+        return !(step instanceof Group) && failedAttempts[step.id()] < step.retries() &&
+                processors[step.id()] != null && !shouldStop() && !isPastDeadline(step);
+    }
+
+    /**
+     * Arranges for the specified step, whose process just failed, to be
+     * re-run once its retry delay elapses. The delay doubles with each
+     * failed attempt. Its dependencies are not re-run.
+     *
+     * @param step test step
+     */
+    private synchronized void retry(Step step) {
+        int attempt = ++failedAttempts[step.id()];
+        wastedMillis[step.id()] += System.currentTimeMillis() - startTimes[step.id()];
+        expired[step.id()] = false;
+        long delay = step.retryDelayMillis() << Math.min(attempt - 1, MAX_BACKOFF_SHIFT);
+        store.markRetrying(step, attempt);
+        listeners.forEach(listener -> listener.onRetry(step, attempt, delay));
+        release(step);
+        dispatch();
+        TIMER.schedule(() -> retryElapsed(step), delay, MILLISECONDS);
+    }
+
+    /**
+     * Re-runs the specified step, whose retry delay has elapsed, unless the
+     * run has been halted, or the scenario reset, in the meantime.
+     *
+     * @param step step to re-run
+     */
+    private synchronized void retryElapsed(Step step) {
+        if (store.getStatus(step) == RETRYING && !shouldStop()) {
+            store.markStarted(step);
+            enqueue(step);
+        }
+    }
+
+    /**
+     * Cancels all children of the specified group, whose deadline has
+     * elapsed, unless it has completed in the meantime. The group then
+     * completes as failed.
+     *
+     * @param group group whose deadline elapsed
+     */
+    private synchronized void deadlineElapsed(Group group) {
+        deadlines[group.id()] = null;
+        if (store.getStatus(group) == IN_PROGRESS) {
+            delegate.onTimeout(group);
+            cancelChildren(group);
+            completeParentIfNeeded(group);
+        }
+    }
+
+    /**
+     * Cancels the pending deadline of the specified group, if any, so that
+     * it cannot expire the group once it runs again.
+     *
+     * @param step step or group
+     */
+    private synchronized void cancelDeadline(Step step) {
+        ScheduledFuture<?> deadline = deadlines[step.id()];
+        if (deadline != null) {
+            deadline.cancel(false);
+            deadlines[step.id()] = null;
+        }
+    }
+
+    /**
+     * Recursively cancels the children of the specified group: running
+     * steps are terminated as having run out of time, while steps yet to
+     * run are skipped.
+     *
+     * @param group group whose children are to be cancelled
+     */
+    private void cancelChildren(Group group) {
+        for (Step step : group.children()) {
+            Status status = store.getStatus(step);
+            if (status == WAITING) {
+                skipStep(step);
+            } else if (step instanceof Group) {
+                if (status == IN_PROGRESS) {
+                    cancelChildren((Group) step);
+                }
+            } else if (processors[step.id()] != null) {
+                processors[step.id()].expire();
+            } else if (status == RETRYING) {
+                // Failed before and ran out of time to try again
+                runnable.remove(step);
+                delegate.onCompletion(step, FAILED);
+            } else if (status == DELAYED || status == IN_PROGRESS) {
+                // Delayed, or queued waiting for capacity or resources
+                runnable.remove(step);
+                delegate.onCompletion(step, SKIPPED);
+            }
+        }
+    }
+
+    /**
+     * Indicates whether the deadline of any group enclosing the specified
+     * step has elapsed.
+     *
+     * @param step test step
+     * @return true if the step is past a deadline
+     */
+    private boolean isPastDeadline(Step step) {
+        for (Group group = step.group(); group != null; group = group.group()) {
+            if (expired[group.id()]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Queues the specified step to be started once there is capacity.
+     *
+     * @param step step to queue
+     */
+    private void enqueue(Step step) {
+        sequence[step.id()] = nextSequence++;
+        runnable.add(step);
+        dispatch();
+    }
+
+    /**
+     * Starts runnable steps, in scheduling order, for as long as the
+     * concurrency limit allows. Steps whose resource tokens are
+     * not available are passed over; so are any lower-ranked steps that use
+     * the same exhausted pools, so that they cannot starve the former.
+     */
+    private synchronized void dispatch() {
+        List<Step> deferred = Lists.newArrayList();
+        Set<String> exhausted = Sets.newHashSet();
+        Step step;
+        while (runningCount < concurrency && !shouldStop() && (step = runnable.poll()) != null) {
+            if (!Collections.disjoint(exhausted, step.uses().keySet()) || !acquire(step)) {
+                exhausted.addAll(step.uses().keySet());
+                deferred.add(step);
+                if (resourceWaitStarts[step.id()] == 0) {
+                    resourceWaitStarts[step.id()] = System.currentTimeMillis();
+                }
+                continue;
+            }
+            if (resourceWaitStarts[step.id()] > 0) {
+                resourceWaits[step.id()] += System.currentTimeMillis() - resourceWaitStarts[step.id()];
+                resourceWaitStarts[step.id()] = 0;
+            }
+            runningCount++;
+            Capture mode = step.capture() != null ? step.capture() : capture;
+            StepProcessor processor =
+                    new StepProcessor(step, logs, delegate, substitute(step.command()), mode, scrapesOutput,
+                                      envFiles, launcher == Launcher.POOL ? launchers : null, cache);
+            processors[step.id()] = processor;
+            processor.start();
+        }
+        runnable.addAll(deferred);
+    }
+
+    /**
+     * Acquires the resource tokens used by the specified step, provided
+     * they are all available.
+     *
+     * @param step step about to be run
+     * @return true if the tokens were acquired
+     */
+    private boolean acquire(Step step) {
+        for (Map.Entry<String, Integer> use : step.uses().entrySet()) {
+            Integer available = availableTokens.get(use.getKey());
+            if (available != null && available < use.getValue()) {
+                return false;
+            }
+        }
+        step.uses().forEach((pool, count) -> availableTokens.computeIfPresent(pool, (p, n) -> n - count));
+        return true;
+    }
+
+    /**
+     * Releases the concurrency slot and resource tokens held by the
+     * specified step, if any.
+     *
+     * @param step step that completed
+     * @return true if the step was running
+     */
+    private synchronized boolean release(Step step) {
+        if (processors[step.id()] != null) {
+            processors[step.id()] = null;
+            runningCount--;
+            step.uses().forEach((pool, count) -> availableTokens.computeIfPresent(pool, (p, n) -> n + count));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Orders runnable steps according to the scheduling policy.
+     *
+     * @param a first step
+     * @param b second step
+     * @return comparison result
+     */
+    private int compareRunnable(Step a, Step b) {
+        if (scheduling == Scheduling.CRITICAL_PATH && ranks[a.id()] != ranks[b.id()]) {
+            return Long.compare(ranks[b.id()], ranks[a.id()]);
+        }
+        return Long.compare(sequence[a.id()], sequence[b.id()]);
+    }
+
+    /**
+     * Computes the rank of each step as the length of the longest path from
+     * the start of the step to the end of the process flow, with each step
+     * weighted by its duration in previous runs. Steps with no history are
+     * weighted by the average of the known durations. The highest rank is
+     * retained as the predicted makespan, provided any history is available.
+     */
+    private void computeRanks() {
+        StepHistory history = store.history();
+        long total = 0;
+        int known = 0;
+        long[] weights = new long[steps.length];
+        for (Step step : steps) {
+            long duration = step instanceof Group ? 0 : history.duration(step.name());
+            weights[step.id()] = duration;
+            if (duration >= 0 && !(step instanceof Group)) {
+                total += duration;
+                known++;
+            }
+        }
+        long fallback = known > 0 ? Math.max(1, total / known) : 1;
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = weights[i] < 0 ? fallback : weights[i];
+            if (!(steps[i] instanceof Group)) {
+                weights[i] += steps[i].delayMillis();
+            }
+        }
+
+        // Each step has two values: its rank and the rank of its tail, i.e.
+        // of whatever has to follow it. Both are evaluated in post-order of
+        // their prerequisites using an explicit stack.
+        int n = steps.length;
+        long[] values = new long[2 * n];
+        byte[] state = new byte[2 * n];
+        Deque<Integer> stack = new ArrayDeque<>();
+        for (int root = 0; root < 2 * n; root++) {
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                int node = stack.peek();
+                if (state[node] == 0) {
+                    state[node] = 1;
+                    for (int prerequisite : prerequisites(node)) {
+                        if (state[prerequisite] == 0) {
+                            stack.push(prerequisite);
+                        }
+                    }
+                } else {
+                    stack.pop();
+                    if (state[node] == 1) {
+                        values[node] = evaluate(node, values, weights);
+                        state[node] = 2;
+                    }
+                }
+            }
+        }
+
+        long makespan = 0;
+        for (int i = 0; i < n; i++) {
+            ranks[i] = values[2 * i];
+            makespan = Math.max(makespan, ranks[i]);
+        }
+        predictedMakespan = known > 0 ? makespan : -1;
+    }
+
+    /**
+     * Returns the nodes whose values are required to evaluate the rank
+     * (even node) or the tail rank (odd node) of a step.
+     *
+     * @param node node index
+     * @return list of prerequisite node indexes
+     */
+    private List<Integer> prerequisites(int node) {
+        Step step = steps[node / 2];
+        List<Integer> prerequisites = Lists.newArrayList();
+        if (node % 2 == 0) {
+            prerequisites.add(node + 1);
+            if (step instanceof Group) {
+                ((Group) step).children().forEach(c -> prerequisites.add(2 * c.id()));
+            }
+        } else {
+            for (Dependency dependency : dependents[step.id()]) {
+                prerequisites.add(2 * dependency.src().id());
+            }
+            if (step.group() != null) {
+                prerequisites.add(2 * step.group().id() + 1);
+            }
+        }
+        return prerequisites;
+    }
+
+    /**
+     * Evaluates the rank (even node) or the tail rank (odd node) of a step.
+     *
+     * @param node    node index
+     * @param values  values of the nodes evaluated so far
+     * @param weights step weights indexed by step id
+     * @return node value
+     */
+    private long evaluate(int node, long[] values, long[] weights) {
+        Step step = steps[node / 2];
+        long value = 0;
+        if (node % 2 == 0) {
+            value = weights[step.id()] + values[node + 1];
+            if (step instanceof Group) {
+                for (Step child : ((Group) step).children()) {
+                    value = Math.max(value, values[2 * child.id()]);
+                }
+            }
+        } else {
+            for (int prerequisite : prerequisites(node)) {
+                value = Math.max(value, values[prerequisite]);
+            }
+        }
+        return value;
+    }
+
     /**
      * Recursively skips the specified step or group and any steps/groups within.
      *
      * @param step step or group
      */
     private void skipStep(Step step) {
+        if (!inScope(step) || store.getStatus(step) != WAITING) {
+            return;
+        }
         if (step instanceof Group) {
             Group group = (Group) step;
             store.markComplete(step, SKIPPED);
             group.children().forEach(this::skipStep);
         }
         delegate.onCompletion(step, SKIPPED);
-
     }
 
     /**
@@ -277,31 +1315,46 @@ public class Coordinator {
      * @return state of the step process
      */
     private Directive nextAction(Step step) {
-        Status status = store.getStatus(step);
-        if (status != WAITING) {
+        if (!inScope(step) || store.getStatus(step) != WAITING) {
+            return NOOP;
+        } else if (blocked[step.id()] || isPastDeadline(step) ||
+                (step.group() != null && store.getStatus(step.group()) == SKIPPED)) {
+            return SKIP;
+        } else if (pendingDependencies[step.id()] > 0) {
             return NOOP;
         }
-
-        for (Dependency dependency : processFlow.getEdgesFrom(step)) {
-            Status depStatus = store.getStatus(dependency.dst());
-            if (depStatus == WAITING || depStatus == IN_PROGRESS) {
-                return NOOP;
-            } else if (((depStatus == FAILED || depStatus == SKIPPED) && !dependency.isSoft()) ||
-                    (step.group() != null && store.getStatus(step.group()) == SKIPPED)) {
-                return SKIP;
-            }
-        }
-        return RUN;
+        return step.delayMillis() > 0 && !(step instanceof Group) ? DELAY : RUN;
     }
 
     /**
-     * Executes the successors to the specified step.
+     * Counts down the dependencies of the steps that require the specified
+     * step and executes the successors that became ready as a result.
      *
-     * @param step step whose successors are to be executed
+     * @param step   step whose successors are to be executed
+     * @param status completion status of the step
      */
-    private void executeSucessors(Step step) {
-        processFlow.getEdgesTo(step).forEach(dependency -> execute(dependency.src()));
-        completeParentIfNeeded(step.group());
+    private synchronized void executeSucessors(Step step, Status status) {
+        boolean failed = status == FAILED || status == SKIPPED;
+        for (Dependency dependency : dependents[step.id()]) {
+            Step src = dependency.src();
+            int id = src.id();
+            if (failed && !dependency.isSoft() && !blocked[id]) {
+                // Skip eagerly, without waiting for the remaining dependencies
+                blocked[id] = true;
+                ready.add(src);
+            }
+            if (--pendingDependencies[id] == 0 && !blocked[id]) {
+                ready.add(src);
+            }
+        }
+
+        Group group = step.group();
+        if (group != null) {
+            pendingChildren[group.id()]--;
+            failedChildren[group.id()] |= status == FAILED;
+        }
+        executeReady();
+        completeParentIfNeeded(group);
     }
 
     /**
@@ -311,20 +1364,75 @@ public class Coordinator {
      * @param group parent group that should be checked
      */
     private synchronized void completeParentIfNeeded(Group group) {
-        if (group != null && getStatus(group) == IN_PROGRESS) {
-            boolean done = true;
-            boolean failed = false;
-            for (Step child : group.children()) {
-                Status status = store.getStatus(child);
-                done = done && (status == SUCCEEDED || status == FAILED || status == SKIPPED);
-                failed = failed || status == FAILED;
-            }
-            if (done) {
-                delegate.onCompletion(group, failed ? FAILED : SUCCEEDED);
-            }
+        if (group != null && pendingChildren[group.id()] == 0 &&
+                getStatus(group) == IN_PROGRESS) {
+            delegate.onCompletion(group, failedChildren[group.id()] || expired[group.id()] ?
+                    FAILED : SUCCEEDED);
         }
     }
 
+    /**
+     * Marks the specified step as having run out of time.
+     *
+     * @param step step or group
+     */
+    private synchronized void markExpired(Step step) {
+        expired[step.id()] = true;
+    }
+
+    /**
+     * Indicates whether the specified step ran out of time.
+     *
+     * @param step step or group
+     * @return true if the step ran out of time
+     */
+    private synchronized boolean isExpired(Step step) {
+        return expired[step.id()];
+    }
+
+    /**
+     * Counts down the steps in scope that have yet to complete.
+     *
+     * @param step step that completed
+     */
+    private synchronized void countDown(Step step) {
+        if (inScope(step)) {
+            remainingInScope--;
+        }
+    }
+
+    /**
+     * Marks the specified step as having had its result restored from the
+     * cache.
+     *
+     * @param step test step
+     */
+    private synchronized void markCached(Step step) {
+        cached[step.id()] = true;
+    }
+
+    /**
+     * Indicates whether the result of the specified step was restored from
+     * the cache.
+     *
+     * @param step test step
+     * @return true if the step result was cached
+     */
+    private synchronized boolean isCached(Step step) {
+        return cached[step.id()];
+    }
+
+    /**
+     * Indicates whether the specified status denotes completion, one way
+     * or another.
+     *
+     * @param status step status
+     * @return true if the status is a final one
+     */
+    private static boolean isDone(Status status) {
+        return status == SUCCEEDED || status == FAILED || status == SKIPPED || status == CANCELLED;
+    }
+
     /**
      * Expands the var references with values from the properties map.
      *
@@ -353,6 +1461,9 @@ public class Coordinator {
      * @param line line of output to scrape for property exports
      */
     private void scrapeForVariables(String line) {
+        if (!line.startsWith(PROP_PREFIX)) {
+            return;
+        }
         Matcher matcher = PROP_ERE.matcher(line);
         if (matcher.matches()) {
             String prop = matcher.group(1);
@@ -376,27 +1487,83 @@ public class Coordinator {
      * Internal delegate to monitor the process execution.
      */
     private class Delegate implements StepProcessListener {
+        @Override
+        public void onDelay(Step step, long millis) {
+            listeners.forEach(listener -> listener.onDelay(step, millis));
+        }
+
         @Override
         public void onStart(Step step, String command) {
+            startTimes[step.id()] = System.currentTimeMillis();
             listeners.forEach(listener -> listener.onStart(step, command));
         }
 
+        @Override
+        public void onTimeout(Step step) {
+            markExpired(step);
+            listeners.forEach(listener -> listener.onTimeout(step));
+        }
+
+        @Override
+        public void onCacheHit(Step step) {
+            markCached(step);
+            listeners.forEach(listener -> listener.onCacheHit(step));
+        }
+
         @Override
         public void onCompletion(Step step, Status status) {
-            store.markComplete(step, status);
+            if (status == FAILED && shouldRetry(step)) {
+                retry(step);
+                return;
+            }
+            store.markComplete(step, status, isExpired(step) ? TIMEOUT : isCached(step) ? CACHED : null);
+            cancelDeadline(step);
+            countDown(step);
             listeners.forEach(listener -> listener.onCompletion(step, status));
+            if (status != FAILED) {
+                logs.discardTail(step);
+            }
+            if (status == FAILED && haltOnError) {
+                cancel();
+            }
             if (!shouldStop()) {
-                executeSucessors(step);
-                if (store.isComplete()) {
-                    latch.countDown();
+                executeSucessors(step, status);
+            }
+            if (release(step)) {
+                // Restoring a cached result says nothing about how long the step takes to run
+                if (!isCached(step)) {
+                    recordHistory(step, status);
                 }
+                dispatch();
+            }
+            completeIfNeeded();
+        }
+
+        // Records the duration and outcome of the step run in the step history
+        private void recordHistory(Step step, Status status) {
+            store.history().recordDuration(step.name(),
+                                           System.currentTimeMillis() - startTimes[step.id()]);
+            if (status == SUCCEEDED || status == FAILED) {
+                store.history().recordOutcome(step.name(), status == SUCCEEDED,
+                                              failedAttempts[step.id()], wastedMillis[step.id()]);
             }
         }
 
         @Override
-        public void onOutput(Step step, String line) {
-            scrapeForVariables(line);
-            listeners.forEach(listener -> listener.onOutput(step, line));
+        public boolean wantsOutput() {
+            return listenersWantOutput;
+        }
+
+        @Override
+        public void onOutput(Step step, OutputBatch batch) {
+            if (scrapesOutput) {
+                batch.lines().forEach(Coordinator.this::scrapeForVariables);
+            }
+            listeners.forEach(listener -> {
+                if (listener.wantsOutput()) {
+                    listener.onOutput(step, batch);
+                }
+            });
         }
     }
 
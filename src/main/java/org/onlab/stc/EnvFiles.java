@@ -0,0 +1,295 @@
+/*
+ * Copyright 2015-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onlab.stc;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Cache of environment variables defined by step environment files, each
+ * of which is evaluated only once. Files consisting solely of plain
+ * variable assignments are parsed natively; any other files are sourced
+ * by a shell, once, and the environment it ends up with is captured.
+ */
+final class EnvFiles {
+
+    // Values of the env attribute which merely say how to treat the exit code
+    private static final String IGNORE_CODE = "~";
+    private static final String NEGATE_CODE = "!";
+
+    private static final Pattern ASSIGNMENT =
+            Pattern.compile("^(export\\s+)?([A-Za-z_][A-Za-z0-9_]*)=(.*)$");
+    private static final Pattern EXPORT =
+            Pattern.compile("^export(\\s+[A-Za-z_][A-Za-z0-9_]*)+$");
+    private static final Pattern REFERENCE =
+            Pattern.compile("^\\$(\\{([A-Za-z_][A-Za-z0-9_]*)}|([A-Za-z_][A-Za-z0-9_]*))");
+    private static final Pattern PLAIN = Pattern.compile("[A-Za-z0-9_./:,@%+=-]");
+
+    // Each file is evaluated by whoever asks first; others wait for the result
+    private final Map<String, CompletableFuture<Map<String, String>>> cache = Maps.newConcurrentMap();
+    private final AtomicInteger parsed = new AtomicInteger();
+    private final AtomicInteger sourced = new AtomicInteger();
+
+    /**
+     * Returns the environment variables to be added to the environment of
+     * the specified step process: those exported by its environment file,
+     * if any, overridden by those given inline.
+     *
+     * @param step test step
+     * @return map of environment variable names to values
+     * @throws IOException if the environment file cannot be evaluated
+     */
+    Map<String, String> environment(Step step) throws IOException {
+        String env = step.env();
+        if (env == null || env.equals(IGNORE_CODE) || env.equals(NEGATE_CODE)) {
+            return step.environment();
+        }
+        return merge(variables(env), step);
+    }
+
+    /**
+     * Returns the environment variables to be added to the environment of
+     * the specified step process, provided that this requires no evaluation
+     * of its environment file, i.e. that it has none or that the file has
+     * been evaluated already.
+     *
+     * @param step test step
+     * @return map of environment variable names to values; null if the
+     * environment file has yet to be evaluated
+     */
+    Map<String, String> evaluated(Step step) {
+        String env = step.env();
+        if (env == null || env.equals(IGNORE_CODE) || env.equals(NEGATE_CODE)) {
+            return step.environment();
+        }
+        CompletableFuture<Map<String, String>> variables = cache.get(env);
+        return variables != null && variables.isDone() && !variables.isCompletedExceptionally() ?
+                merge(variables.join(), step) : null;
+    }
+
+    // Overrides the specified variables with those given inline by the step
+    private static Map<String, String> merge(Map<String, String> variables, Step step) {
+        Map<String, String> environment = Maps.newHashMap(variables);
+        environment.putAll(step.environment());
+        return environment;
+    }
+
+    /**
+     * Returns the environment variables exported by the specified file,
+     * evaluating it if it has not been evaluated before.
+     *
+     * @param path environment file path
+     * @return map of environment variable names to values
+     * @throws IOException if the file cannot be evaluated
+     */
+    Map<String, String> variables(String path) throws IOException {
+        CompletableFuture<Map<String, String>> future = new CompletableFuture<>();
+        CompletableFuture<Map<String, String>> existing = cache.putIfAbsent(path, future);
+        if (existing != null) {
+            try {
+                return existing.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof IOException ?
+                        (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        }
+        try {
+            future.complete(evaluate(path));
+            return future.join();
+        } catch (IOException | RuntimeException e) {
+            // Failures are not remembered; the next step gets to try again
+            cache.remove(path, future);
+            future.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    // Evaluates the specified file, natively if possible
+    private Map<String, String> evaluate(String path) throws IOException {
+        File file = new File(path);
+        if (!file.isFile()) {
+            throw new IOException(path + " file not found");
+        }
+        Map<String, String> variables = parse(Files.readAllLines(file.toPath(), Charset.defaultCharset()));
+        if (variables != null) {
+            parsed.incrementAndGet();
+            return variables;
+        }
+        sourced.incrementAndGet();
+        return source(file);
+    }
+
+    /**
+     * Forgets all previously evaluated files.
+     */
+    void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Returns a summary of how environment files were evaluated.
+     *
+     * @return environment file statistics
+     */
+    String stats() {
+        return String.format("env files: %d parsed; %d sourced by shell", parsed.get(), sourced.get());
+    }
+
+    /**
+     * Parses lines of an environment file consisting of plain variable
+     * assignments, comments and export declarations.
+     *
+     * @param lines environment file lines
+     * @return map of exported variable names to values; null if the file
+     * requires evaluation by a shell
+     */
+    static Map<String, String> parse(List<String> lines) {
+        Map<String, String> variables = Maps.newHashMap();
+        Set<String> exported = Sets.newHashSet(System.getenv().keySet());
+        for (String line : lines) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            if (EXPORT.matcher(line).matches()) {
+                for (String name : line.substring("export".length()).trim().split("\\s+")) {
+                    exported.add(name);
+                }
+                continue;
+            }
+            Matcher matcher = ASSIGNMENT.matcher(line);
+            String value = matcher.matches() ? value(matcher.group(3), variables) : null;
+            if (value == null) {
+                return null;
+            }
+            variables.put(matcher.group(2), value);
+            if (matcher.group(1) != null) {
+                exported.add(matcher.group(2));
+            }
+        }
+
+        ImmutableMap.Builder<String, String> builder = ImmutableMap.builder();
+        variables.forEach((name, value) -> {
+            if (exported.contains(name)) {
+                builder.put(name, value);
+            }
+        });
+        return builder.build();
+    }
+
+    /**
+     * Evaluates an assignment value made up of plain words, single-quoted
+     * strings, double-quoted strings and simple variable references.
+     *
+     * @param text      value text
+     * @param variables variables assigned so far
+     * @return value; null if the value requires evaluation by a shell
+     */
+    private static String value(String text, Map<String, String> variables) {
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                i++;
+            } else if (c == '\'' && !quoted) {
+                int end = text.indexOf('\'', i + 1);
+                if (end < 0) {
+                    return null;
+                }
+                value.append(text, i + 1, end);
+                i = end + 1;
+            } else if (c == '$') {
+                Matcher matcher = REFERENCE.matcher(text.substring(i));
+                if (!matcher.find()) {
+                    return null;
+                }
+                String name = matcher.group(2) != null ? matcher.group(2) : matcher.group(3);
+                String resolved = variables.containsKey(name) ? variables.get(name) : System.getenv(name);
+                value.append(Objects.toString(resolved, ""));
+                i += matcher.end();
+            } else if (quoted ? c != '\\' && c != '`' : PLAIN.matcher(String.valueOf(c)).matches()) {
+                value.append(c);
+                i++;
+            } else {
+                return null;
+            }
+        }
+        return quoted ? null : value.toString();
+    }
+
+    /**
+     * Sources the specified file using a shell and captures the resulting
+     * changes to the environment.
+     *
+     * @param file environment file
+     * @return map of environment variable names to values
+     * @throws IOException if the file cannot be sourced
+     */
+    private static Map<String, String> source(File file) throws IOException {
+        Process process = new ProcessBuilder("bash", "-c", "source \"$1\" >/dev/null 2>&1 </dev/null; env -0",
+                                             "stc-env", file.getPath())
+                .redirectErrorStream(true).start();
+        byte[] output;
+        try (InputStream input = process.getInputStream()) {
+            output = ByteStreams.toByteArray(input);
+        }
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException("Unable to source " + file);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sourcing " + file, e);
+        }
+
+        Map<String, String> inherited = System.getenv();
+        ImmutableMap.Builder<String, String> builder = ImmutableMap.builder();
+        for (String entry : new String(output, Charset.defaultCharset()).split("\0")) {
+            int eq = entry.indexOf('=');
+            if (eq > 0) {
+                String name = entry.substring(0, eq);
+                String value = entry.substring(eq + 1);
+                // Leave out what the shell sets for itself
+                if (!value.equals(inherited.get(name)) && !name.equals("_") &&
+                        !name.equals("SHLVL") && !name.equals("PWD") && !name.equals("OLDPWD")) {
+                    builder.put(name, value);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2015-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onlab.stc;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Maps;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static org.onlab.stc.Coordinator.print;
+
+/**
+ * Pool of long-lived launcher workers, one for each distinct combination
+ * of step environment file and working directory. Each worker is a shell
+ * which sources the environment file and changes to the working directory
+ * only once, and then launches step commands it is sent over its standard
+ * input, with any inline environment variables of their steps, redirecting
+ * their output to the step logs and reporting their process ids and exit
+ * codes back over its standard output.
+ */
+final class LauncherPool {
+
+    // Exit code reported for steps whose worker could not be used
+    static final int FAIL = -1;
+
+    // Requests are NUL-delimited fields: id, log file, variable count,
+    // variables as name=value, argument count, arguments
+    private static final String SCRIPT =
+            "if [ \"$1\" != - ]; then\n" +
+            "    [ ! -f \"$1\" ] && echo \"$1 file not found\" && exit 1\n" +
+            "    source \"$1\"\n" +
+            "fi\n" +
+            "if [ \"$2\" != - ]; then\n" +
+            "    [ ! -d \"$2\" ] && echo \"$2 directory not found\" && exit 1\n" +
+            "    cd \"$2\"\n" +
+            "fi\n" +
+            "while IFS= read -r -d '' id && IFS= read -r -d '' log && IFS= read -r -d '' varc; do\n" +
+            "    vars=()\n" +
+            "    for ((i = 0; i < varc; i++)); do IFS= read -r -d '' var; vars+=(\"$var\"); done\n" +
+            "    IFS= read -r -d '' argc\n" +
+            "    args=()\n" +
+            "    for ((i = 0; i < argc; i++)); do IFS= read -r -d '' arg; args+=(\"$arg\"); done\n" +
+            "    { ((varc)) && export \"${vars[@]}\"; \"${args[@]}\" >>\"$log\" 2>&1 </dev/null; echo \"$id $?\"; } 2>>\"$log\" &\n" +
+            "    echo \"$id pid $!\"\n" +
+            "done\n" +
+            "wait\n";
+
+    private static final String NONE = "-";
+    private static final String PID = "pid ";
+
+    private final Map<Key, Worker> workers = Maps.newHashMap();
+    private final AtomicLong ids = new AtomicLong();
+
+    /**
+     * Starts workers for all the specified steps ahead of their launch.
+     *
+     * @param steps steps to be launched
+     */
+    synchronized void prefork(Collection<Step> steps) {
+        steps.stream().filter(step -> !(step instanceof Group))
+                .forEach(step -> worker(new Key(step)));
+    }
+
+    /**
+     * Launches the specified step command via the worker for the step
+     * environment file and working directory, adding the inline environment
+     * variables of the step. Output of the command is appended to the given
+     * log file. The process the worker spawns to run the command, whose
+     * descendants include the command itself, is reported to the given
+     * consumer.
+     *
+     * @param step    test step
+     * @param args    command arguments
+     * @param log     log file
+     * @param spawned consumer of the spawned process
+     * @return future completed with the command exit code
+     */
+    CompletableFuture<Integer> launch(Step step, List<String> args, File log,
+                                      Consumer<ProcessHandle> spawned) {
+        Worker worker;
+        synchronized (this) {
+            worker = worker(new Key(step));
+        }
+        return worker == null ? CompletableFuture.completedFuture(FAIL) :
+                worker.launch(step.environment(), args, log, spawned);
+    }
+
+    /**
+     * Lets all workers exit once the commands they have launched complete.
+     */
+    synchronized void close() {
+        workers.values().forEach(Worker::close);
+        workers.clear();
+    }
+
+    // Returns the live worker for the specified key, starting one if needed
+    private Worker worker(Key key) {
+        Worker worker = workers.get(key);
+        if (worker == null || !worker.process.isAlive()) {
+            try {
+                worker = new Worker(key);
+                workers.put(key, worker);
+            } catch (IOException e) {
+                print("Unable to start launcher worker for %s", key);
+                workers.remove(key);
+                return null;
+            }
+        }
+        return worker;
+    }
+
+    // Environment file and working directory shared by steps
+    private static final class Key {
+        private final String env;
+        private final String cwd;
+
+        private Key(Step step) {
+            // Some env values merely say how to treat the exit code
+            String env = step.env();
+            this.env = env == null || env.equals("~") || env.equals("!") ? NONE : env;
+            this.cwd = step.cwd() == null ? NONE : step.cwd();
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(env, cwd);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && env.equals(((Key) obj).env) && cwd.equals(((Key) obj).cwd);
+        }
+
+        @Override
+        public String toString() {
+            return env + " " + cwd;
+        }
+    }
+
+    // Shell launching commands on behalf of the coordinator
+    private final class Worker {
+        private final Process process;
+        private final OutputStream requests;
+        private final Map<Long, CompletableFuture<Integer>> pending = Maps.newConcurrentMap();
+        private final Map<Long, Consumer<ProcessHandle>> spawns = Maps.newConcurrentMap();
+
+        private Worker(Key key) throws IOException {
+            process = new ProcessBuilder("bash", "-c", SCRIPT, "stc-worker", key.env, key.cwd)
+                    .redirectErrorStream(true).start();
+            requests = process.getOutputStream();
+            Thread reader = new Thread(this::readReplies, "stc-launcher");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private CompletableFuture<Integer> launch(Map<String, String> vars, List<String> args,
+                                                  File log, Consumer<ProcessHandle> spawned) {
+            long id = ids.incrementAndGet();
+            CompletableFuture<Integer> exit = new CompletableFuture<>();
+            pending.put(id, exit);
+            spawns.put(id, spawned);
+
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            field(request, Long.toString(id));
+            field(request, log.getAbsolutePath());
+            field(request, Integer.toString(vars.size()));
+            vars.forEach((name, value) -> field(request, name + "=" + value));
+            field(request, Integer.toString(args.size()));
+            args.forEach(arg -> field(request, arg));
+            try {
+                synchronized (this) {
+                    request.writeTo(requests);
+                    requests.flush();
+                }
+            } catch (IOException e) {
+                pending.remove(id);
+                spawns.remove(id);
+                exit.complete(FAIL);
+            }
+            return exit;
+        }
+
+        private void field(ByteArrayOutputStream request, String value) {
+            byte[] bytes = value.getBytes(Charset.defaultCharset());
+            request.write(bytes, 0, bytes.length);
+            request.write(0);
+        }
+
+        // Completes launched commands as their process ids and exit codes are reported
+        private void readReplies() {
+            try (BufferedReader replies = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), Charset.defaultCharset()))) {
+                String line;
+                while ((line = replies.readLine()) != null) {
+                    int space = line.indexOf(' ');
+                    Long id = space > 0 ? parseLong(line.substring(0, space)) : null;
+                    String reply = space > 0 ? line.substring(space + 1).trim() : "";
+                    // Each reply is parsed on its own, so that a malformed one is merely reported
+                    if (id != null && reply.startsWith(PID)) {
+                        Long pid = parseLong(reply.substring(PID.length()));
+                        Consumer<ProcessHandle> spawned = spawns.remove(id);
+                        Optional<ProcessHandle> handle = pid != null ? ProcessHandle.of(pid) : Optional.empty();
+                        if (pid == null) {
+                            print("Launcher worker: %s", line);
+                        } else if (spawned != null && handle.isPresent()) {
+                            spawned.accept(handle.get());
+                        }
+                        continue;
+                    }
+                    Long code = parseLong(reply);
+                    CompletableFuture<Integer> exit = id != null && code != null ? pending.remove(id) : null;
+                    if (exit != null) {
+                        spawns.remove(id);
+                        exit.complete(code.intValue());
+                    } else {
+                        print("Launcher worker: %s", line);
+                    }
+                }
+            } catch (IOException e) {
+                print("Unable to read launcher worker replies: %s", e);
+            }
+
+            // Commands left behind by a dead worker can no longer be accounted for
+            pending.values().forEach(exit -> exit.complete(FAIL));
+            pending.clear();
+            spawns.clear();
+        }
+
+        private Long parseLong(String value) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private synchronized void close() {
+            try {
+                requests.close();
+            } catch (IOException e) {
+                if (process.isAlive()) {
+                    print("Unable to close launcher worker");
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onlab.stc;
+
+import com.google.common.collect.ImmutableList;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Bounded in-memory tail of a step log, retaining only the most recent
+ * output of the step process so that it can be reported cheaply no matter
+ * how large the complete log grows.
+ */
+final class LogTail {
+
+    private final File file;
+    private final byte[] ring;
+    private long total;
+
+    /**
+     * Creates a log tail of the specified capacity.
+     *
+     * @param file     complete log file
+     * @param capacity maximum number of most recent bytes retained
+     */
+    LogTail(File file, int capacity) {
+        this.file = file;
+        this.ring = new byte[capacity];
+    }
+
+    /**
+     * Returns the file holding the complete log.
+     *
+     * @return log file
+     */
+    File file() {
+        return file;
+    }
+
+    /**
+     * Appends the specified output to the tail, overwriting the oldest
+     * output if need be.
+     *
+     * @param bytes  output bytes
+     * @param offset offset of the first byte
+     * @param length number of bytes
+     */
+    synchronized void append(byte[] bytes, int offset, int length) {
+        total += length;
+        if (length > ring.length) {
+            offset += length - ring.length;
+            length = ring.length;
+        }
+        int start = (int) ((total - length) % ring.length);
+        int first = Math.min(length, ring.length - start);
+        System.arraycopy(bytes, offset, ring, start, first);
+        System.arraycopy(bytes, offset + first, ring, 0, length - first);
+    }
+
+    /**
+     * Indicates whether some of the output no longer fits in the tail.
+     *
+     * @return true if the tail holds only part of the log
+     */
+    synchronized boolean isTruncated() {
+        return total > ring.length;
+    }
+
+    /**
+     * Returns the complete lines of output retained in the tail; the
+     * partially overwritten oldest line, if any, is omitted.
+     *
+     * @return list of most recent output lines
+     */
+    synchronized List<String> lines() {
+        int size = (int) Math.min(total, ring.length);
+        int start = (int) ((total - size) % ring.length);
+        byte[] bytes = new byte[size];
+        int first = Math.min(size, ring.length - start);
+        System.arraycopy(ring, start, bytes, 0, first);
+        System.arraycopy(ring, 0, bytes, first, size - first);
+
+        String[] lines = new String(bytes, Charset.defaultCharset()).split("\n", -1);
+        int from = isTruncated() ? 1 : 0;
+        int to = lines.length > 0 && lines[lines.length - 1].isEmpty() ? lines.length - 1 : lines.length;
+        ImmutableList.Builder<String> builder = ImmutableList.builder();
+        Arrays.asList(lines).subList(Math.min(from, to), to)
+                .forEach(line -> builder.add(line.endsWith("\r") ?
+                                                     line.substring(0, line.length() - 1) : line));
+        return builder.build();
+    }
+
+}
@@ -16,7 +16,7 @@
 package org.onlab.stc;
 
 import com.google.common.collect.ImmutableList;
-import com.google.common.io.Files;
+import com.google.common.collect.Sets;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.servlet.ServletHandler;
 import org.eclipse.jetty.util.log.Logger;
@@ -25,14 +25,18 @@ import org.onlab.stc.Coordinator.Status;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 
 import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.onlab.stc.Coordinator.Status.*;
 import static org.onlab.stc.Coordinator.print;
 
@@ -53,14 +57,20 @@ public final class Main {
     private static final String SUCCESS_SUMMARY =
             "%s %sPassed! %d steps succeeded%s";
     private static final String MIXED_SUMMARY =
-            "%s%d steps succeeded; %s%d steps failed; %s%d steps skipped%s";
+            "%s%d steps succeeded; %s%d steps failed; %s%d steps skipped; %d steps cancelled%s";
     private static final String FAILURE_SUMMARY = "%s %sFailed! " + MIXED_SUMMARY;
     private static final String ABORTED_SUMMARY = "%s %sAborted! " + MIXED_SUMMARY;
 
+    // Cache of step results, relative to the user home directory, unless overridden
+    private static final String DEFAULT_CACHE_DIR = ".stc/cache";
+
+    // How long to wait for running steps to be cancelled when interrupted
+    private static final long CANCEL_WAIT_MILLIS = Coordinator.CANCEL_GRACE_MILLIS + 2_000;
+
     private boolean isReported = false;
 
     private enum Command {
-        LIST, LIST_FAILED, RUN, RUN_RANGE, VALIDATE
+        LIST, LIST_FAILED, RUN, RUN_RANGE, RESUME, RERUN_FAILED, VALIDATE
     }
 
     private final String scenarioFile;
@@ -80,9 +90,19 @@ public final class Main {
     private static boolean useColor = darkColor || lightColor || Objects.equals("true", stcColor);
     private static boolean dumpLogs = Objects.equals("true", System.getenv("stcDumpLogs"));
     private static boolean haltOnError = Objects.equals("true", System.getenv("stcHaltOnError"));
+    private static boolean showStats = Objects.equals("true", System.getenv("stcStats"));
+    private static String durability = System.getenv("stcDurability");
+    private static String schedule = System.getenv("stcSchedule");
+    private static String concurrency = System.getenv("stcConcurrency");
+    private static String capture = System.getenv("stcCapture");
+    private static String launcher = System.getenv("stcLauncher");
+    private static boolean compressLogs = Objects.equals("true", System.getenv("stcCompressLogs"));
+    private static String cacheDir = System.getenv("stcCache");
 
     // usage: stc [<scenario-file>] [run]
     // usage: stc [<scenario-file>] run [from <from-patterns>] [to <to-patterns>]]
+    // usage: stc [<scenario-file>] resume
+    // usage: stc [<scenario-file>] rerunFailed
     // usage: stc [<scenario-file>] list
     // usage: stc [<scenario-file>] listFailed
 
@@ -97,6 +117,10 @@ public final class Main {
             command = Command.RUN;
         } else if (args.length == 2 && cmd.equals("validate")) {
             command = Command.VALIDATE;
+        } else if (args.length == 2 && cmd.equals("resume")) {
+            command = Command.RESUME;
+        } else if (args.length == 2 && cmd.equals("rerunFailed")) {
+            command = Command.RERUN_FAILED;
         } else if (args.length == 2 && cmd.equals("list")) {
             command = Command.LIST;
         } else if (args.length == 2 && cmd.equals("listFailed")) {
@@ -148,6 +172,28 @@ public final class Main {
             coordinator = new Coordinator(scenario, compiler.processFlow(),
                                           compiler.logDir());
             coordinator.setHaltOnError(haltOnError);
+            coordinator.setResourcePools(compiler.pools());
+            coordinator.setCompressLogs(compressLogs);
+            if (durability != null) {
+                coordinator.setDurability(option("stcDurability", durability, Coordinator.Durability.class));
+            }
+            if (schedule != null) {
+                coordinator.setScheduling(option("stcSchedule", schedule, Coordinator.Scheduling.class));
+            }
+            if (concurrency != null) {
+                coordinator.setConcurrency(concurrencyOption());
+            }
+            if (capture != null) {
+                coordinator.setCapture(option("stcCapture", capture, Coordinator.Capture.class));
+            }
+            if (launcher != null) {
+                coordinator.setLauncher(option("stcLauncher", launcher, Coordinator.Launcher.class));
+            }
+            if (cacheDir == null) {
+                coordinator.setCacheDir(new File(System.getProperty("user.home"), DEFAULT_CACHE_DIR));
+            } else if (!cacheDir.trim().equals("none")) {
+                coordinator.setCacheDir(new File(cacheDir.trim()));
+            }
             coordinator.addListener(delegate);
 
             // Execute process flow
@@ -173,6 +219,12 @@ public final class Main {
             case RUN_RANGE:
                 processRunRange();
                 break;
+            case RESUME:
+                processResume();
+                break;
+            case RERUN_FAILED:
+                processRerunFailed();
+                break;
             default:
                 print("Unsupported command %s", command);
                 printHelp();
@@ -181,20 +233,44 @@ public final class Main {
     }
 
     private void printHelp() {
-        print("usage: stc [scenario [run*|list|listFailed]");
+        printUsage();
+        System.exit(0);
+    }
+
+    // Reports an invalid environment variable value, prints usage and exits.
+    private void invalidOption(String name, String value, String expected) {
+        print("Invalid %s value %s; expected %s", name, value, expected);
+        printUsage();
+        System.exit(1);
+    }
+
+    private void printUsage() {
+        print("usage: stc [scenario [run*|resume|rerunFailed|list|listFailed]");
         print("\n" +
               "Commands:\n" +
               " - run              runs the specified scenario\n" +
+              " - resume           runs the steps that did not succeed in the prior run\n" +
+              " - rerunFailed      re-runs the steps that failed in the prior run\n" +
               " - list             lists result from the prior run\n" +
               " - listFailed       lists results of failed steps from the prior run\n" +
               " - validate         checks that the XML for the scenario is valid\n" +
               "\n" +
               "Environment Variables:\n" +
-              "  - stcHaltOnError  true|false*     stop when a step fails\n" +
-              "  - stcDumpLogs     true|false*     dump logs for failed steps to console\n" +
+              "  - stcHaltOnError  true|false*     cancel the run when a step fails\n" +
+              "  - stcDumpLogs     true|false*     dump log tails of failed steps to console\n" +
+              "  - stcDurability   none|flush*|fsync|interval\n" +
+              "                                    how eagerly step status is persisted\n" +
+              "  - stcSchedule     fifo*|critical-path\n" +
+              "                                    order in which ready steps are started\n" +
+              "  - stcConcurrency  64*             maximum number of steps running at once\n" +
+              "  - stcCapture      pipe*|file      how step output is captured in step logs\n" +
+              "  - stcLauncher     direct*|pool    launch steps directly or via pre-forked workers\n" +
+              "  - stcCompressLogs true|false*     compress piped step logs using gzip\n" +
+              "  - stcCache        ~/.stc/cache*|<dir>|none\n" +
+              "                                    where to cache results of steps with inputs/outputs\n" +
+              "  - stcStats        true|false*     print run statistics after the summary\n" +
               "  - stcColor        dark*|light     use colors for dark or light terminals\n" +
               "  - stcTitle                        terminal title prefix\n");
-        System.exit(0);
     }
 
     // Processes the scenario 'run' command.
@@ -209,6 +285,18 @@ public final class Main {
         runCoordinator();
     }
 
+    // Processes the scenario 'resume' command.
+    private void processResume() {
+        coordinator.resume();
+        runCoordinator();
+    }
+
+    // Processes the scenario 'rerunFailed' command.
+    private void processRerunFailed() {
+        coordinator.rerunFailed();
+        runCoordinator();
+    }
+
     // Processes the scenario 'list' command.
     private void processList() {
         coordinator.getRecords()
@@ -243,12 +331,11 @@ public final class Main {
     // Sets the terminal title to indicate progress.
     private synchronized void printTitle() {
         if (useColor) {
-            Set<Step> steps = coordinator.getSteps();
-            long success = steps.stream().filter(s -> coordinator.getStatus(s) == SUCCEEDED).count();
-            long failed = steps.stream().filter(s -> coordinator.getStatus(s) == FAILED).count();
-            long skipped = steps.stream().filter(s -> coordinator.getStatus(s) == SKIPPED).count();
             System.out.print(String.format(TITLE, stcTitle, compiler.scenario().name(),
-                                           steps.size(), success, failed, skipped));
+                                           coordinator.getSteps().size(),
+                                           coordinator.getCount(SUCCEEDED),
+                                           coordinator.getCount(FAILED),
+                                           coordinator.getCount(SKIPPED)));
         }
     }
 
@@ -262,12 +349,20 @@ public final class Main {
             if (exitCode == 0) {
                 print(SUCCESS_SUMMARY, duration, color(SUCCEEDED), count, color(null));
             } else {
-                long success = steps.stream().filter(s -> coordinator.getStatus(s) == SUCCEEDED).count();
-                long failed = steps.stream().filter(s -> coordinator.getStatus(s) == FAILED).count();
-                long skipped = steps.stream().filter(s -> coordinator.getStatus(s) == SKIPPED).count();
+                int success = coordinator.getCount(SUCCEEDED);
+                int failed = coordinator.getCount(FAILED);
+                int skipped = coordinator.getCount(SKIPPED);
+                int cancelled = coordinator.getCount(CANCELLED);
                 print(isAborted ? ABORTED_SUMMARY : FAILURE_SUMMARY, duration,
                       color(FAILED), color(SUCCEEDED), success,
-                      color(FAILED), failed, color(SKIPPED), skipped, color(null));
+                      color(FAILED), failed, color(SKIPPED), skipped, cancelled, color(null));
+            }
+            String cacheStats = coordinator.cacheStatistics();
+            if (cacheStats != null) {
+                print("%s", cacheStats);
+            }
+            if (showStats) {
+                coordinator.statistics().forEach(line -> print("%s", line));
             }
         }
     }
@@ -276,22 +371,51 @@ public final class Main {
      * Internal delegate to monitor the process execution.
      */
     private class Listener implements StepProcessListener {
+        private final Set<Step> timedOut = Sets.newConcurrentHashSet();
+        private final Set<Step> cached = Sets.newConcurrentHashSet();
+
+        @Override
+        public void onDelay(Step step, long millis) {
+            logStatus(currentTimeMillis(), step.name(), DELAYED, String.format("%.3fs", millis / 1e3));
+        }
+
         @Override
         public void onStart(Step step, String command) {
             logStatus(currentTimeMillis(), step.name(), IN_PROGRESS, command);
         }
 
+        @Override
+        public void onTimeout(Step step) {
+            timedOut.add(step);
+        }
+
+        @Override
+        public void onCacheHit(Step step) {
+            cached.add(step);
+        }
+
+        @Override
+        public void onRetry(Step step, int attempt, long delayMillis) {
+            timedOut.remove(step);
+            logStatus(currentTimeMillis(), step.name(), RETRYING,
+                      String.format("attempt %d of %d failed; retrying in %.3fs",
+                                    attempt, step.retries() + 1, delayMillis / 1e3));
+        }
+
         @Override
         public void onCompletion(Step step, Status status) {
             printTitle();
-            logStatus(currentTimeMillis(), step.name(), status, null);
+            logStatus(currentTimeMillis(), step.name(), status,
+                      timedOut.remove(step) ? Coordinator.TIMEOUT :
+                              cached.remove(step) ? Coordinator.CACHED : null);
             if (dumpLogs && !(step instanceof Group) && status == FAILED) {
                 dumpLogs(step);
             }
         }
 
         @Override
-        public void onOutput(Step step, String line) {
+        public boolean wantsOutput() {
+            return false;
         }
     }
 
@@ -304,16 +428,18 @@ public final class Main {
         }
     }
 
-    // Dumps the step logs to standard output.
+    // Dumps the tail of the step logs to standard output.
     private void dumpLogs(Step step) {
-        File logFile = new File(compiler.logDir(), step.name() + ".log");
-        try {
-            print(">>>>>");
-            Files.copy(logFile, System.out);
-            print("<<<<<");
-        } catch (IOException e) {
-            print("Unable to dump log file %s", logFile.getName());
+        // Steps which failed before producing any output have no tail
+        LogTail tail = coordinator.getLogTail(step);
+        print(">>>>>");
+        if (tail != null) {
+            if (tail.isTruncated()) {
+                print("... see %s for the complete log", tail.file());
+            }
+            tail.lines().forEach(line -> print("%s", line));
         }
+        print("<<<<<");
     }
 
     // Produces a description of event using the specified step status.
@@ -321,7 +447,10 @@ public final class Main {
         return status == IN_PROGRESS ? "started" :
                 (status == SUCCEEDED ? "completed" :
                         (status == FAILED ? "failed" :
-                                (status == SKIPPED ? "skipped" : "waiting")));
+                                (status == SKIPPED ? "skipped" :
+                                        (status == CANCELLED ? "cancelled" :
+                                                (status == RETRYING ? "retrying" :
+                                                        (status == DELAYED ? "delayed" : "waiting"))))));
     }
 
     // Produces an ANSI escape code for color using the specified step status.
@@ -335,6 +464,41 @@ public final class Main {
                                 (status == FAILED ? RED : GRAY)));
     }
 
+    // Produces an enum constant name from the specified option value.
+    private static String enumName(String value) {
+        return value.trim().replace('-', '_').toUpperCase();
+    }
+
+    // Produces the option value from the specified enum constant name.
+    private static String optionValue(Enum<?> constant) {
+        return constant.name().replace('_', '-').toLowerCase();
+    }
+
+    // Parses the value of the specified environment variable as an enum constant.
+    private <E extends Enum<E>> E option(String name, String value, Class<E> type) {
+        try {
+            return Enum.valueOf(type, enumName(value));
+        } catch (IllegalArgumentException e) {
+            invalidOption(name, value, Arrays.stream(type.getEnumConstants())
+                    .map(Main::optionValue).collect(Collectors.joining("|")));
+            return null;
+        }
+    }
+
+    // Parses the value of the stcConcurrency environment variable.
+    private int concurrencyOption() {
+        try {
+            int limit = Integer.parseInt(concurrency.trim());
+            if (limit > 0) {
+                return limit;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        invalidOption("stcConcurrency", concurrency, "a positive number");
+        return 0;
+    }
+
     // Produces a list from the specified comma-separated string.
     private static List<String> list(String patterns) {
         return ImmutableList.copyOf(patterns.split(","));
@@ -365,10 +529,17 @@ public final class Main {
                 String.format("%d:%02d", minutes, seconds);
     }
 
-    // Shutdown hook to report status even when aborted.
+    // Shutdown hook to cancel any steps still running and report status even when aborted.
     private class ShutdownHook extends Thread {
         @Override
         public void run() {
+            coordinator.cancel();
+            try {
+                coordinator.completion().get(CANCEL_WAIT_MILLIS, MILLISECONDS);
+            } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                print("Unable to cancel all steps");
+            }
+            coordinator.flush();
             printSummary(1, true);
         }
     }
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onlab.stc;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Batch of output lines of a step process, each with the time at which it
+ * was read.
+ */
+public final class OutputBatch {
+
+    private final List<String> lines;
+    private final long[] times;
+
+    /**
+     * Creates a batch of output lines.
+     *
+     * @param lines output lines
+     * @param times time of each line in millis since epoch
+     */
+    public OutputBatch(List<String> lines, long[] times) {
+        checkArgument(lines.size() <= times.length, "Each line must have a time");
+        this.lines = ImmutableList.copyOf(lines);
+        this.times = Arrays.copyOf(times, lines.size());
+    }
+
+    /**
+     * Returns the number of lines in the batch.
+     *
+     * @return number of lines
+     */
+    public int size() {
+        return lines.size();
+    }
+
+    /**
+     * Returns the output lines, in the order in which they were produced.
+     *
+     * @return list of lines
+     */
+    public List<String> lines() {
+        return lines;
+    }
+
+    /**
+     * Returns the specified output line.
+     *
+     * @param index line index
+     * @return output line
+     */
+    public String line(int index) {
+        return lines.get(index);
+    }
+
+    /**
+     * Returns the time at which the specified output line was read.
+     *
+     * @param index line index
+     * @return time in millis since epoch
+     */
+    public long time(int index) {
+        checkArgument(index < lines.size(), "Index out of bounds");
+        return times[index];
+    }
+
+}
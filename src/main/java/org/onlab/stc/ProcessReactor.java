@@ -0,0 +1,288 @@
+/*
+ * Copyright 2015-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onlab.stc;
+
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+import static java.util.concurrent.Executors.newSingleThreadExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.onlab.stc.Coordinator.print;
+
+/**
+ * Supervises step processes without dedicating a thread to each of them.
+ * A single reactor thread pumps the output of all live processes, process
+ * exits are signalled asynchronously, and a single worker thread carries
+ * out launches and completion callbacks.
+ */
+class ProcessReactor {
+
+    private static final int MIN_IDLE_MILLIS = 1;
+    private static final int MAX_IDLE_MILLIS = 50;
+
+    // Maximum number of reads from a single live process per pass
+    private static final int MAX_READS = 8;
+
+    // Lines of output that export properties start with this prefix
+    private static final byte[] EXPORT_PREFIX = "@stc ".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Represents which lines of process output are to be delivered.
+     */
+    enum Lines {
+        /**
+         * No lines at all.
+         */
+        NONE,
+
+        /**
+         * Only lines that export properties.
+         */
+        EXPORTS,
+
+        /**
+         * All lines.
+         */
+        ALL
+    }
+
+    private final byte[] buffer = new byte[8192];
+    private final List<Channel> channels = Lists.newArrayList();
+    private final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+
+    private final ExecutorService worker =
+            newSingleThreadExecutor(r -> daemon(r, "stc-worker"));
+
+    /**
+     * Creates a process reactor and starts its thread.
+     */
+    ProcessReactor() {
+        daemon(this::pump, "stc-reactor").start();
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Submits the specified task to be carried out by the worker thread.
+     *
+     * @param task task to carry out
+     */
+    void submit(Runnable task) {
+        worker.execute(task);
+    }
+
+    /**
+     * Registers a process for supervision. Output read from the
+     * given stream, be it the process pipe or a log file the output is
+     * redirected to, is copied verbatim to the given log, if any. The lines
+     * admitted by the filter are fed to the given consumer on the reactor
+     * thread in batches, one for each time output is read. Once the process
+     * exits and its output has been drained, the exit callback is carried
+     * out by the worker thread.
+     *
+     * @param exit     future completed when the process exits
+     * @param output   process output; null if output is not to be read
+     * @param log      stream to copy output to; null if none
+     * @param filter   lines to be delivered
+     * @param consumer consumer of output line batches
+     * @param onExit   exit callback
+     */
+    void register(CompletableFuture<?> exit, InputStream output, OutputStream log,
+                  Lines filter, Consumer<OutputBatch> consumer, Runnable onExit) {
+        Channel channel = new Channel(output, log, filter, consumer, onExit);
+        tasks.add(() -> channels.add(channel));
+        exit.thenRun(() -> tasks.add(() -> channel.exited = true));
+    }
+
+    /**
+     * Pumps output of all registered processes until interrupted.
+     */
+    private void pump() {
+        long idle = MIN_IDLE_MILLIS;
+        while (true) {
+            try {
+                Runnable task = channels.isEmpty() ? tasks.take() : tasks.poll(idle, MILLISECONDS);
+                while (task != null) {
+                    task.run();
+                    task = tasks.poll();
+                }
+
+                boolean active = false;
+                Iterator<Channel> it = channels.iterator();
+                while (it.hasNext()) {
+                    Channel channel = it.next();
+                    if (channel.exited) {
+                        channel.read(Integer.MAX_VALUE);
+                        channel.close();
+                        it.remove();
+                        worker.execute(channel.onExit);
+                    } else {
+                        active |= channel.read(MAX_READS);
+                    }
+                }
+
+                // Back off gradually while all processes are quiet
+                idle = active ? MIN_IDLE_MILLIS : Math.min(idle * 2, MAX_IDLE_MILLIS);
+
+            } catch (InterruptedException e) {
+                print("Process reactor interrupted");
+                return;
+            } catch (RuntimeException e) {
+                print("Process reactor error %s", e);
+            }
+        }
+    }
+
+    // Output of a supervised process
+    private final class Channel {
+        private final InputStream input;
+        private final OutputStream log;
+        private final Lines filter;
+        private final Consumer<OutputBatch> consumer;
+        private final Runnable onExit;
+        private boolean exited;
+
+        // Line being scanned; its bytes are kept only if it is to be delivered
+        private byte[] line = new byte[256];
+        private int length;
+        private boolean pending;
+        private int matched;
+
+        private final List<String> batch = Lists.newArrayList();
+        private long[] times = new long[16];
+        private long now;
+
+        private Channel(InputStream input, OutputStream log, Lines filter,
+                        Consumer<OutputBatch> consumer, Runnable onExit) {
+            this.input = input;
+            this.log = log;
+            this.filter = filter;
+            this.consumer = consumer;
+            this.onExit = onExit;
+        }
+
+        // Reads whatever output is available without blocking
+        private boolean read(int maxReads) {
+            boolean read = false;
+            if (input == null) {
+                return false;
+            }
+            try {
+                int available;
+                for (int i = 0; i < maxReads && (available = input.available()) > 0; i++) {
+                    int count = input.read(buffer, 0, Math.min(available, buffer.length));
+                    if (count <= 0) {
+                        break;
+                    }
+                    if (log != null) {
+                        log.write(buffer, 0, count);
+                    }
+                    now = System.currentTimeMillis();
+                    scan(count);
+                    read = true;
+                }
+            } catch (IOException e) {
+                // Stream has been closed; the exit notification will follow
+            }
+            deliver();
+            return read;
+        }
+
+        // Scans the bytes just read for the lines to be delivered
+        private void scan(int count) {
+            if (filter == Lines.NONE) {
+                return;
+            }
+            boolean all = filter == Lines.ALL;
+            for (int i = 0; i < count; i++) {
+                byte b = buffer[i];
+                if (b == '\n') {
+                    endLine();
+                    continue;
+                }
+                pending = true;
+                if (matched >= 0 && matched < EXPORT_PREFIX.length) {
+                    matched = b == EXPORT_PREFIX[matched] ? matched + 1 : -1;
+                }
+                if (all || matched >= 0) {
+                    if (length == line.length) {
+                        line = Arrays.copyOf(line, line.length * 2);
+                    }
+                    line[length++] = b;
+                }
+            }
+        }
+
+        // Completes the line being scanned, materializing it if it is to be delivered
+        private void endLine() {
+            if (filter == Lines.ALL || matched == EXPORT_PREFIX.length) {
+                int end = length > 0 && line[length - 1] == '\r' ? length - 1 : length;
+                if (batch.size() == times.length) {
+                    times = Arrays.copyOf(times, times.length * 2);
+                }
+                times[batch.size()] = now;
+                batch.add(new String(line, 0, end, Charset.defaultCharset()));
+            }
+            length = 0;
+            matched = 0;
+            pending = false;
+        }
+
+        // Delivers the lines accumulated since the last delivery
+        private void deliver() {
+            if (!batch.isEmpty()) {
+                OutputBatch output = new OutputBatch(batch, times);
+                batch.clear();
+                consumer.accept(output);
+            }
+        }
+
+        private void close() {
+            if (pending) {
+                endLine();
+                deliver();
+            }
+            try {
+                if (input != null) {
+                    input.close();
+                }
+                if (log != null) {
+                    log.close();
+                }
+            } catch (IOException e) {
+                print("Unable to close process output");
+            }
+        }
+    }
+
+}
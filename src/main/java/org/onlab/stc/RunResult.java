@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onlab.stc;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * Outcome of a scenario process flow run.
+ */
+public final class RunResult {
+
+    private final int succeeded;
+    private final int failed;
+    private final int skipped;
+    private final int cancelled;
+    private final boolean halted;
+    private final long duration;
+
+    /**
+     * Creates a new run result.
+     *
+     * @param succeeded number of steps that succeeded
+     * @param failed    number of steps that failed
+     * @param skipped   number of steps that were skipped
+     * @param cancelled number of steps that were cancelled
+     * @param halted    true if the run was halted before all steps completed
+     * @param duration  run duration in millis
+     */
+    RunResult(int succeeded, int failed, int skipped, int cancelled, boolean halted, long duration) {
+        this.succeeded = succeeded;
+        this.failed = failed;
+        this.skipped = skipped;
+        this.cancelled = cancelled;
+        this.halted = halted;
+        this.duration = duration;
+    }
+
+    /**
+     * Returns the process exit code reflecting the run outcome.
+     *
+     * @return 0 if no step failed or got cancelled; 1 otherwise
+     */
+    public int exitCode() {
+        return failed > 0 || cancelled > 0 ? 1 : 0;
+    }
+
+    /**
+     * Returns the number of steps and groups that succeeded.
+     *
+     * @return number of succeeded steps
+     */
+    public int succeeded() {
+        return succeeded;
+    }
+
+    /**
+     * Returns the number of steps and groups that failed.
+     *
+     * @return number of failed steps
+     */
+    public int failed() {
+        return failed;
+    }
+
+    /**
+     * Returns the number of steps and groups that were skipped.
+     *
+     * @return number of skipped steps
+     */
+    public int skipped() {
+        return skipped;
+    }
+
+    /**
+     * Returns the number of steps and groups that were cancelled while in
+     * flight.
+     *
+     * @return number of cancelled steps
+     */
+    public int cancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Indicates whether the run was halted on error or cancelled before all steps
+     * completed.
+     *
+     * @return true if the run was halted
+     */
+    public boolean isHalted() {
+        return halted;
+    }
+
+    /**
+     * Returns the duration of the run.
+     *
+     * @return number of millis elapsed during the run
+     */
+    public long duration() {
+        return duration;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("succeeded", succeeded)
+                .add("failed", failed)
+                .add("skipped", skipped)
+                .add("cancelled", cancelled)
+                .add("halted", halted)
+                .add("duration", duration)
+                .toString();
+    }
+}
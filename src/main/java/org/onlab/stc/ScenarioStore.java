@@ -18,16 +18,17 @@ package org.onlab.stc;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import org.apache.commons.configuration.ConfigurationException;
-import org.apache.commons.configuration.PropertiesConfiguration;
 import org.onlab.stc.Coordinator.Status;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
 import static org.onlab.stc.Coordinator.Status.*;
 import static org.onlab.stc.Coordinator.print;
 
@@ -36,12 +37,19 @@ import static org.onlab.stc.Coordinator.print;
  */
 class ScenarioStore {
 
+    private static final Status[] STATUSES = Status.values();
+
     private final ProcessFlow processFlow;
-    private final File storeFile;
+    private final StepEventJournal journal;
+    private final StepHistory history;
     private final File logDir;
 
     private final List<StepEvent> events = Lists.newArrayList();
-    private final Map<String, Status> statusMap = Maps.newConcurrentMap();
+
+    // Step status is tracked densely by step id; counts are kept per status
+    private final Map<String, Step> stepsByName = Maps.newHashMap();
+    private final byte[] statuses;
+    private final int[] counts = new int[Status.values().length];
 
     private long startTime = Long.MAX_VALUE;
     private long endTime = Long.MIN_VALUE;
@@ -56,28 +64,101 @@ class ScenarioStore {
     ScenarioStore(ProcessFlow processFlow, File logDir, String name) {
         this.processFlow = processFlow;
         this.logDir = logDir;
-        this.storeFile = new File(logDir, name + ".stc");
+        this.journal = new StepEventJournal(new File(logDir, name + ".stc"));
+        this.history = new StepHistory(new File(logDir, name + ".history"));
+
+        Set<Step> steps = processFlow.getVertexes();
+        this.statuses = new byte[steps.size()];
+        steps.forEach(step -> {
+            checkState(step.id() >= 0 && step.id() < statuses.length,
+                       "Step %s has no valid id", step.name());
+            checkState(stepsByName.put(step.name(), step) == null,
+                       "Step %s is a duplicate", step.name());
+        });
+        Arrays.fill(statuses, (byte) WAITING.ordinal());
+        counts[WAITING.ordinal()] = statuses.length;
         load();
     }
 
     /**
      * Resets status of all steps to waiting and clears all events.
      */
-    void reset() {
+    synchronized void reset() {
         events.clear();
-        statusMap.clear();
-        processFlow.getVertexes().forEach(step -> statusMap.put(step.name(), WAITING));
-        try {
-            removeLogs();
-            PropertiesConfiguration cfg = new PropertiesConfiguration(storeFile);
-            cfg.clear();
-            cfg.save();
-            startTime = Long.MAX_VALUE;
-            endTime = Long.MIN_VALUE;
-        } catch (ConfigurationException e) {
-            print("Unable to store file %s", storeFile);
+        Arrays.fill(statuses, (byte) WAITING.ordinal());
+        Arrays.fill(counts, 0);
+        counts[WAITING.ordinal()] = statuses.length;
+        removeLogs();
+        journal.clear();
+        startTime = Long.MAX_VALUE;
+        endTime = Long.MIN_VALUE;
+    }
+
+    /**
+     * Resets status of the specified steps to waiting and discards their
+     * events and logs, leaving the status, events and logs of all other
+     * steps intact. The run start and end times are recomputed from the
+     * events that remain, just as if they were replayed from the journal.
+     *
+     * @param steps set of ids of the steps to reset
+     */
+    synchronized void reset(BitSet steps) {
+        events.removeIf(event -> {
+            Step step = stepsByName.get(event.name());
+            return step != null && steps.get(step.id());
+        });
+        for (int id = steps.nextSetBit(0); id >= 0; id = steps.nextSetBit(id + 1)) {
+            counts[statuses[id]]--;
+            statuses[id] = (byte) WAITING.ordinal();
+            counts[WAITING.ordinal()]++;
         }
+        stepsByName.values().stream()
+                .filter(step -> steps.get(step.id()))
+                .forEach(step -> StepLogs.delete(logDir, step.name()));
+        journal.compact(events);
 
+        startTime = Long.MAX_VALUE;
+        endTime = Long.MIN_VALUE;
+        events.forEach(event -> {
+            startTime = Math.min(startTime, event.time());
+            endTime = Math.max(endTime, event.time());
+        });
+    }
+
+    /**
+     * Sets the durability policy for persisting step events.
+     *
+     * @param durability durability policy
+     */
+    void setDurability(Coordinator.Durability durability) {
+        journal.setDurability(durability);
+    }
+
+    /**
+     * Waits until all recorded events and the step history have been durably
+     * persisted.
+     */
+    void flush() {
+        journal.flush();
+        history.save();
+    }
+
+    /**
+     * Returns the history of steps accrued across scenario runs.
+     *
+     * @return step history
+     */
+    StepHistory history() {
+        return history;
+    }
+
+    /**
+     * Returns a summary of the persistence statistics.
+     *
+     * @return persistence statistics
+     */
+    String stats() {
+        return journal.stats();
     }
 
     /**
@@ -104,8 +185,30 @@ class ScenarioStore {
      * @param step test step or group
      * @return step status record
      */
-    Status getStatus(Step step) {
-        return checkNotNull(statusMap.get(step.name()), "Step %s not found", step.name());
+    synchronized Status getStatus(Step step) {
+        checkArgument(step.id() >= 0 && step.id() < statuses.length &&
+                              step.equals(stepsByName.get(step.name())),
+                      "Step %s not found", step.name());
+        return STATUSES[statuses[step.id()]];
+    }
+
+    /**
+     * Returns the number of steps currently in the specified status.
+     *
+     * @param status step status
+     * @return number of steps
+     */
+    synchronized int getCount(Status status) {
+        return counts[status.ordinal()];
+    }
+
+    /**
+     * Marks the specified test step as waiting out its start delay.
+     *
+     * @param step test step
+     */
+    synchronized void markDelayed(Step step) {
+        record(new StepEvent(step.name(), DELAYED, step.command()));
     }
 
     /**
@@ -114,8 +217,19 @@ class ScenarioStore {
      * @param step test step or group
      */
     synchronized void markStarted(Step step) {
-        add(new StepEvent(step.name(), IN_PROGRESS, step.command()));
-        save();
+        record(new StepEvent(step.name(), IN_PROGRESS, step.command()));
+    }
+
+    /**
+     * Marks the specified test step as waiting to be retried after the
+     * given attempt failed.
+     *
+     * @param step    test step
+     * @param attempt number of the attempt that failed, starting at 1
+     */
+    synchronized void markRetrying(Step step, int attempt) {
+        record(new StepEvent(step.name(), RETRYING,
+                             String.format("attempt %d of %d failed", attempt, step.retries() + 1)));
     }
 
     /**
@@ -125,8 +239,18 @@ class ScenarioStore {
      * @param status new step status
      */
     synchronized void markComplete(Step step, Status status) {
-        add(new StepEvent(step.name(), status, null));
-        save();
+        markComplete(step, status, null);
+    }
+
+    /**
+     * Marks the specified test step as being complete for the given reason.
+     *
+     * @param step   test step or group
+     * @param status new step status
+     * @param reason reason for the status; null if none
+     */
+    synchronized void markComplete(Step step, Status status, String reason) {
+        record(new StepEvent(step.name(), status, reason));
     }
 
     /**
@@ -136,7 +260,8 @@ class ScenarioStore {
      * @return true if all steps completed one way or another
      */
     synchronized boolean isComplete() {
-        return !statusMap.values().stream().anyMatch(s -> s == WAITING || s == IN_PROGRESS);
+        return counts[WAITING.ordinal()] + counts[DELAYED.ordinal()] + counts[IN_PROGRESS.ordinal()] +
+                counts[RETRYING.ordinal()] == 0;
     }
 
     /**
@@ -144,13 +269,8 @@ class ScenarioStore {
      *
      * @return true if there are failed steps
      */
-    boolean hasFailures() {
-        for (Status status : statusMap.values()) {
-            if (status == FAILED) {
-                return true;
-            }
-        }
-        return false;
+    synchronized boolean hasFailures() {
+        return counts[FAILED.ordinal()] > 0;
     }
 
     /**
@@ -160,45 +280,41 @@ class ScenarioStore {
      */
     private synchronized void add(StepEvent event) {
         events.add(event);
-        statusMap.put(event.name(), event.status());
+        Step step = stepsByName.get(event.name());
+        if (step != null) {
+            counts[statuses[step.id()]]--;
+            statuses[step.id()] = (byte) event.status().ordinal();
+            counts[event.status().ordinal()]++;
+        }
         startTime = Math.min(startTime, event.time());
         endTime = Math.max(endTime, event.time());
     }
 
     /**
-     * Loads the states from disk.
+     * Registers a new step record and appends it to the journal.
+     *
+     * @param event step event
      */
-    private void load() {
-        try {
-            PropertiesConfiguration cfg = new PropertiesConfiguration(storeFile);
-            cfg.getKeys().forEachRemaining(prop -> add(StepEvent.fromString(cfg.getString(prop))));
-            cfg.save();
-        } catch (ConfigurationException e) {
-            print("Unable to load file %s", storeFile);
-        }
+    private synchronized void record(StepEvent event) {
+        add(event);
+        journal.append(event);
     }
 
     /**
-     * Saves the states to disk.
+     * Loads the states from disk by replaying the event journal.
      */
-    private void save() {
-        try {
-            PropertiesConfiguration cfg = new PropertiesConfiguration(storeFile);
-            events.forEach(event -> cfg.setProperty("T" + event.time(), event.toString()));
-            cfg.save();
-        } catch (ConfigurationException e) {
-            print("Unable to store file %s", storeFile);
-        }
+    private void load() {
+        journal.replay().forEach(this::add);
     }
 
     /**
-     * Removes all scenario log files.
+     * Removes all scenario log files, except for the step history.
      */
     private void removeLogs() {
         File[] logFiles = logDir.listFiles();
         if (logFiles != null && logFiles.length > 0) {
             for (File file : logFiles) {
-                if (!file.delete()) {
+                if (!file.equals(history.file()) && !file.delete()) {
                     print("Unable to delete log file %s", file);
                 }
             }
@@ -16,8 +16,12 @@
 package org.onlab.stc;
 
 import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import org.onlab.graph.Vertex;
 
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -32,7 +36,17 @@ public class Step implements Vertex {
     protected final String env;
     protected final String cwd;
     protected final Group group;
-    protected final int delay;
+
+    private int id = -1;
+    private long delayMillis;
+    private long timeoutMillis;
+    private int retries;
+    private long retryDelayMillis;
+    private Coordinator.Capture capture;
+    private Map<String, Integer> uses = ImmutableMap.of();
+    private Map<String, String> environment = ImmutableMap.of();
+    private List<String> inputs = ImmutableList.of();
+    private List<String> outputs = ImmutableList.of();
 
     /**
      * Creates a new test step.
@@ -47,7 +61,7 @@ public class Step implements Vertex {
     public Step(String name, String command, String env, String cwd, Group group, int delay) {
         this.name = checkNotNull(name, "Name cannot be null");
         this.group = group;
-        this.delay = delay;
+        this.delayMillis = delay * 1_000L;
 
         // Set the command, environment and cwd
         // If one is not given use the value from the enclosing group
@@ -102,12 +116,204 @@ public class Step implements Vertex {
     }
 
     /**
-     * Returns the start delay in seconds.
+     * Returns the dense numeric id assigned to the step by the compiler.
+     *
+     * @return step id; -1 if not yet assigned
+     */
+    public int id() {
+        return id;
+    }
+
+    /**
+     * Assigns the dense numeric id of the step.
+     *
+     * @param id step id
+     */
+    void setId(int id) {
+        this.id = id;
+    }
+
+    /**
+     * Returns the start delay in whole seconds, rounded down.
      *
      * @return number of seconds
+     * @deprecated in favour of {@link #delayMillis()}, which retains the
+     * sub-second resolution of the delay
      */
+    @Deprecated
     public int delay() {
-        return delay;
+        return (int) (delayMillis / 1_000);
+    }
+
+    /**
+     * Returns the start delay in milliseconds.
+     *
+     * @return number of millis
+     */
+    public long delayMillis() {
+        return delayMillis;
+    }
+
+    /**
+     * Sets the start delay with sub-second resolution.
+     *
+     * @param delayMillis number of millis
+     */
+    void setDelayMillis(long delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+
+    /**
+     * Returns the time limit of the step process or, for groups, the
+     * deadline by which all children of the group must complete.
+     *
+     * @return number of millis; 0 if unlimited
+     */
+    public long timeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Sets the time limit of the step process or the group deadline.
+     *
+     * @param timeoutMillis number of millis; 0 if unlimited
+     */
+    void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Returns the number of times the step process is re-run after failing
+     * before the step is deemed to have failed.
+     *
+     * @return number of retries
+     */
+    public int retries() {
+        return retries;
+    }
+
+    /**
+     * Sets the number of times the step process is re-run after failing.
+     *
+     * @param retries number of retries
+     */
+    void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    /**
+     * Returns the delay before the first retry of the step process; each
+     * subsequent retry waits twice as long as the one before.
+     *
+     * @return number of millis
+     */
+    public long retryDelayMillis() {
+        return retryDelayMillis;
+    }
+
+    /**
+     * Sets the delay before the first retry of the step process.
+     *
+     * @param retryDelayMillis number of millis
+     */
+    void setRetryDelayMillis(long retryDelayMillis) {
+        this.retryDelayMillis = retryDelayMillis;
+    }
+
+    /**
+     * Returns the means by which output of the step process is captured.
+     *
+     * @return output capture; null to use the coordinator default
+     */
+    public Coordinator.Capture capture() {
+        return capture;
+    }
+
+    /**
+     * Sets the means by which output of the step process is captured.
+     *
+     * @param capture output capture; null to use the coordinator default
+     */
+    void setCapture(Coordinator.Capture capture) {
+        this.capture = capture;
+    }
+
+    /**
+     * Returns the number of tokens the step requires from each of the
+     * named resource pools in order to run.
+     *
+     * @return map of resource pool names to token counts
+     */
+    public Map<String, Integer> uses() {
+        return uses;
+    }
+
+    /**
+     * Sets the number of tokens the step requires from each of the named
+     * resource pools.
+     *
+     * @param uses map of resource pool names to token counts
+     */
+    void setUses(Map<String, Integer> uses) {
+        this.uses = ImmutableMap.copyOf(uses);
+    }
+
+    /**
+     * Returns the environment variables given inline for the step process;
+     * these take precedence over those from the environment file.
+     *
+     * @return map of environment variable names to values
+     */
+    public Map<String, String> environment() {
+        return environment;
+    }
+
+    /**
+     * Sets the environment variables given inline for the step process.
+     *
+     * @param environment map of environment variable names to values
+     */
+    void setEnvironment(Map<String, String> environment) {
+        this.environment = ImmutableMap.copyOf(environment);
+    }
+
+    /**
+     * Returns the paths of the files or directories the step process reads,
+     * relative to its working directory unless absolute. Together with its
+     * command and environment, these determine the result of the step.
+     *
+     * @return list of input paths
+     */
+    public List<String> inputs() {
+        return inputs;
+    }
+
+    /**
+     * Sets the paths of the files or directories the step process reads.
+     *
+     * @param inputs list of input paths
+     */
+    void setInputs(List<String> inputs) {
+        this.inputs = ImmutableList.copyOf(inputs);
+    }
+
+    /**
+     * Returns the paths of the files or directories the step process
+     * produces, relative to its working directory unless absolute.
+     *
+     * @return list of output paths
+     */
+    public List<String> outputs() {
+        return outputs;
+    }
+
+    /**
+     * Sets the paths of the files or directories the step process produces.
+     *
+     * @param outputs list of output paths
+     */
+    void setOutputs(List<String> outputs) {
+        this.outputs = ImmutableList.copyOf(outputs);
     }
 
     @Override
@@ -135,7 +341,7 @@ public class Step implements Vertex {
                 .add("env", env)
                 .add("cwd", cwd)
                 .add("group", group)
-                .add("delay", delay)
+                .add("delay", delayMillis / 1e3)
                 .toString();
     }
 }
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2015-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onlab.stc;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.ByteStreams;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.onlab.stc.Coordinator.print;
+
+/**
+ * Local cache of the results of steps which declare their inputs or
+ * outputs. Each result is filed under a key derived from the command,
+ * environment, working directory and content of the input files of the
+ * step, and consists of the exit code, the log and the output files of a
+ * successful run of the step. Steps whose key is found are not executed;
+ * their result is restored instead.
+ */
+final class StepCache {
+
+    // Bumped whenever the key derivation or the entry layout changes
+    private static final String VERSION = "2";
+
+    private static final String RESULT = "result";
+    private static final String LOG = "log";
+    private static final String OUTPUTS = "outputs";
+
+    private final File dir;
+
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+    private final AtomicLong savedMillis = new AtomicLong();
+
+    /**
+     * Creates a step cache kept in the specified directory.
+     *
+     * @param dir cache directory
+     */
+    StepCache(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Indicates whether the results of the specified step may be cached,
+     * which is the case when it declares its inputs or outputs.
+     *
+     * @param step test step
+     * @return true if the step is cacheable
+     */
+    static boolean isCacheable(Step step) {
+        return !(step instanceof Group) && (!step.inputs().isEmpty() || !step.outputs().isEmpty());
+    }
+
+    /**
+     * Derives the cache key of the specified step from its command, its
+     * environment, its working directory, the paths of its output files, as
+     * the cached outputs are filed by their position, and the paths and
+     * content of its input files.
+     *
+     * @param step        test step
+     * @param command     actual command, including run-time substitutions
+     * @param environment environment variables added for the step
+     * @return cache key
+     * @throws IOException if an input file cannot be read
+     */
+    String key(Step step, String command, Map<String, String> environment) throws IOException {
+        Hasher hasher = Hashing.sha256().newHasher();
+        field(hasher, VERSION);
+        field(hasher, command);
+        field(hasher, String.valueOf(step.env()));
+        field(hasher, String.valueOf(step.cwd()));
+        new TreeMap<>(environment).forEach((name, value) -> {
+            field(hasher, name);
+            field(hasher, value);
+        });
+        hasher.putInt(step.outputs().size());
+        step.outputs().forEach(output -> field(hasher, output));
+        for (String input : step.inputs()) {
+            field(hasher, input);
+            Path path = resolve(step, input);
+            if (!Files.exists(path)) {
+                field(hasher, "-");
+                continue;
+            }
+            for (Path file : files(path)) {
+                field(hasher, path.relativize(file).toString());
+                try (HashingInputStream in = new HashingInputStream(Hashing.sha256(),
+                                                                    Files.newInputStream(file))) {
+                    ByteStreams.exhaust(in);
+                    hasher.putBytes(in.hash().asBytes());
+                }
+            }
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Looks up the result filed under the specified key.
+     *
+     * @param key cache key
+     * @return cached exit code; null if there is no such result
+     * @throws IOException if the result cannot be read
+     */
+    Integer lookup(String key) throws IOException {
+        File result = new File(new File(dir, key), RESULT);
+        if (!result.isFile()) {
+            misses.incrementAndGet();
+            return null;
+        }
+        return Integer.parseInt(fields(result)[0]);
+    }
+
+    /**
+     * Restores the result filed under the specified key: the output files
+     * of the step are replaced by the cached ones and the cached log is
+     * copied to the given stream.
+     *
+     * @param step test step
+     * @param key  cache key
+     * @param log  stream to copy the cached log to
+     * @throws IOException if the result cannot be restored
+     */
+    void restore(Step step, String key, OutputStream log) throws IOException {
+        File entry = new File(dir, key);
+        List<String> outputs = step.outputs();
+        for (int i = 0; i < outputs.size(); i++) {
+            Path target = resolve(step, outputs.get(i));
+            Path cached = new File(new File(entry, OUTPUTS), String.valueOf(i)).toPath();
+            delete(target);
+            if (Files.exists(cached)) {
+                copy(cached, target);
+            }
+        }
+        try (InputStream in = openLog(key)) {
+            ByteStreams.copy(in, log);
+        }
+        hits.incrementAndGet();
+        savedMillis.addAndGet(Long.parseLong(fields(new File(entry, RESULT))[1]));
+    }
+
+    /**
+     * Opens the cached log filed under the specified key for reading.
+     *
+     * @param key cache key
+     * @return log input stream
+     * @throws IOException if the log cannot be read
+     */
+    InputStream openLog(String key) throws IOException {
+        return Files.newInputStream(new File(new File(dir, key), LOG).toPath());
+    }
+
+    /**
+     * Files the result of a successful run of the specified step under the
+     * specified key, unless a result is already filed under it.
+     *
+     * @param step   test step
+     * @param key    cache key
+     * @param code   exit code of the step process
+     * @param millis time it took to run the step
+     * @param log    step log content
+     */
+    void store(Step step, String key, int code, long millis, InputStream log) {
+        File entry = new File(dir, key);
+        if (entry.exists()) {
+            return;
+        }
+        // Assemble the entry aside and move it into place in one go
+        File staging = new File(dir, key + ".tmp" + Thread.currentThread().getId());
+        try {
+            Files.createDirectories(dir.toPath());
+            delete(staging.toPath());
+            Files.createDirectories(new File(staging, OUTPUTS).toPath());
+            List<String> outputs = step.outputs();
+            for (int i = 0; i < outputs.size(); i++) {
+                Path source = resolve(step, outputs.get(i));
+                if (Files.exists(source)) {
+                    copy(source, new File(new File(staging, OUTPUTS), String.valueOf(i)).toPath());
+                }
+            }
+            Files.copy(log, new File(staging, LOG).toPath());
+            Files.write(new File(staging, RESULT).toPath(),
+                        (code + " " + millis + "\n").getBytes(StandardCharsets.UTF_8));
+            Files.move(staging.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            print("Unable to cache result of step %s: %s", step.name(), e.getMessage());
+            try {
+                delete(staging.toPath());
+            } catch (IOException ignored) {
+                // Leave the debris for the next attempt to clean up
+            }
+        }
+    }
+
+    /**
+     * Returns a summary of cache hits and misses, or null if the cache was
+     * not consulted at all.
+     *
+     * @return cache statistics
+     */
+    String stats() {
+        if (hits.get() + misses.get() == 0) {
+            return null;
+        }
+        return String.format("cache: %d hits; %d misses; %.1fs saved",
+                             hits.get(), misses.get(), savedMillis.get() / 1e3);
+    }
+
+    // Reads the exit code and the duration making up a cached result
+    private static String[] fields(File result) throws IOException {
+        return new String(Files.readAllBytes(result.toPath()), StandardCharsets.UTF_8).trim().split(" ");
+    }
+
+    // Feeds a length-prefixed field to the hasher, so that fields cannot run into each other
+    private static void field(Hasher hasher, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        hasher.putInt(bytes.length).putBytes(bytes);
+    }
+
+    // Resolves the path of a step input or output against the step working directory
+    private static Path resolve(Step step, String path) {
+        File file = new File(path);
+        return file.isAbsolute() || step.cwd() == null ?
+                file.toPath() : new File(step.cwd(), path).toPath();
+    }
+
+    // Returns the regular files at or under the specified path, in a stable order
+    private static List<Path> files(Path path) throws IOException {
+        try (Stream<Path> files = Files.walk(path)) {
+            return files.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+    }
+
+    // Copies the specified file or directory tree
+    private static void copy(Path source, Path target) throws IOException {
+        try (Stream<Path> paths = Files.walk(source)) {
+            for (Path path : paths.collect(Collectors.toList())) {
+                Path copy = target.resolve(source.relativize(path).toString());
+                if (Files.isDirectory(path)) {
+                    Files.createDirectories(copy);
+                } else {
+                    if (copy.getParent() != null) {
+                        Files.createDirectories(copy.getParent());
+                    }
+                    Files.copy(path, copy, StandardCopyOption.REPLACE_EXISTING,
+                               StandardCopyOption.COPY_ATTRIBUTES);
+                }
+            }
+        }
+    }
+
+    // Deletes the specified file or directory tree, if it exists
+    private static void delete(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path p : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(p);
+            }
+        }
+    }
+
+}
@@ -107,7 +107,8 @@ public class StepEvent {
      * @return step record
      */
     public static StepEvent fromString(String string) {
-        String[] fields = string.split("~");
+        // Limit the split so that commands containing the separator survive.
+        String[] fields = string.split(SEP, 4);
         return fields.length == 4 ?
                 new StepEvent(fields[0], parseLong(fields[1]), valueOf(fields[2]),
                               fields[3].equals("null") ? null : fields[3]) :
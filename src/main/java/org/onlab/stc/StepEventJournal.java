@@ -0,0 +1,447 @@
+/*
+ * Copyright 2015-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onlab.stc;
+
+import com.google.common.collect.Lists;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.PropertiesConfiguration;
+import org.onlab.stc.Coordinator.Durability;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static org.onlab.stc.Coordinator.print;
+
+/**
+ * Append-only journal of step events backing the scenario store.
+ * <p>
+ * Each event is written as a single line record prefixed with the CRC32 of
+ * its payload. On replay, a torn or corrupt trailing record (e.g. left behind
+ * by a killed run) is discarded and the file is truncated back to the last
+ * intact record, so earlier events are never lost. The journal is
+ * compacted only on replay and when part of the scenario is reset, since
+ * every full run starts it afresh.
+ * </p>
+ * <p>
+ * Appended events are committed by a dedicated writer thread, which drains
+ * all pending events as a single batch and makes them durable according to
+ * the configured {@link Durability} policy. Callers never wait on disk I/O
+ * unless they explicitly {@link #flush() flush} the journal.
+ * </p>
+ */
+class StepEventJournal {
+
+    private static final int CRC_LENGTH = 8;
+    private static final byte EOL = '\n';
+    private static final byte SEP = ' ';
+    private static final int BUFFER_SIZE = 64 * 1_024;
+    private static final long SYNC_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private static final Pattern LEGACY_RECORD = Pattern.compile("^T[0-9]+ = .*");
+
+    private final File file;
+    private final Object ioLock = new Object();
+
+    private final BlockingQueue<StepEvent> pending = new LinkedBlockingQueue<>();
+    private final List<StepEvent> batch = Lists.newArrayList();
+    private Durability durability = Durability.FLUSH;
+    private Thread writer;
+    private FileOutputStream fileStream;
+    private BufferedOutputStream stream;
+    private long lastSync = System.nanoTime();
+
+    // Accounting used to let callers wait for outstanding commits
+    private long appended = 0;
+    private long committed = 0;
+
+    // Commit statistics
+    private long batches = 0;
+    private long maxBatchSize = 0;
+    private long totalCommitNanos = 0;
+    private long maxCommitNanos = 0;
+
+    /**
+     * Creates a journal backed by the specified file.
+     *
+     * @param file journal file
+     */
+    StepEventJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the file backing the journal.
+     *
+     * @return journal file
+     */
+    File file() {
+        return file;
+    }
+
+    /**
+     * Sets the durability policy applied to each committed batch.
+     *
+     * @param durability durability policy
+     */
+    void setDurability(Durability durability) {
+        synchronized (ioLock) {
+            this.durability = durability;
+        }
+    }
+
+    /**
+     * Queues the specified event to be appended to the journal by the
+     * writer thread.
+     *
+     * @param event step event
+     */
+    synchronized void append(StepEvent event) {
+        if (writer == null) {
+            writer = new Thread(this::writeLoop, "stc-journal");
+            writer.setDaemon(true);
+            writer.start();
+        }
+        appended++;
+        pending.add(event);
+    }
+
+    /**
+     * Waits until all previously appended events have been written out and
+     * forces them to the storage device, regardless of durability policy.
+     */
+    void flush() {
+        synchronized (this) {
+            long target = appended;
+            try {
+                while (committed < target) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        synchronized (ioLock) {
+            try {
+                if (stream != null) {
+                    stream.flush();
+                    fileStream.getFD().sync();
+                }
+            } catch (IOException e) {
+                print("Unable to store file %s", file);
+            }
+        }
+    }
+
+    /**
+     * Returns a summary of the batch commit statistics.
+     *
+     * @return commit statistics
+     */
+    synchronized String stats() {
+        long events = committed;
+        return String.format("journal: %d events in %d batches; avg batch %.1f, max batch %d; " +
+                                     "avg commit %.3f ms, max commit %.3f ms; durability %s",
+                             events, batches, batches > 0 ? (double) events / batches : 0.0,
+                             maxBatchSize, batches > 0 ? totalCommitNanos / 1e6 / batches : 0.0,
+                             maxCommitNanos / 1e6, durability);
+    }
+
+    // Drains pending events and commits them in batches.
+    private void writeLoop() {
+        try {
+            while (true) {
+                batch.add(pending.take());
+                pending.drainTo(batch);
+                commit(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Writes out the batch of events and makes it durable as configured.
+    private void commit(List<StepEvent> events) {
+        long start = System.nanoTime();
+        synchronized (ioLock) {
+            write(events, start);
+        }
+
+        long elapsed = System.nanoTime() - start;
+        synchronized (this) {
+            batches++;
+            maxBatchSize = Math.max(maxBatchSize, events.size());
+            totalCommitNanos += elapsed;
+            maxCommitNanos = Math.max(maxCommitNanos, elapsed);
+            committed += events.size();
+            notifyAll();
+        }
+    }
+
+    // Writes out the events and applies the durability policy.
+    private void write(List<StepEvent> events, long start) {
+        try {
+            if (stream == null) {
+                ensureDirectory();
+                fileStream = new FileOutputStream(file, true);
+                stream = new BufferedOutputStream(fileStream, BUFFER_SIZE);
+            }
+            for (StepEvent event : events) {
+                stream.write(encode(event));
+            }
+            switch (durability) {
+                case FLUSH:
+                    stream.flush();
+                    break;
+                case FSYNC:
+                    stream.flush();
+                    fileStream.getFD().sync();
+                    break;
+                case INTERVAL:
+                    stream.flush();
+                    if (start - lastSync >= SYNC_INTERVAL) {
+                        fileStream.getFD().sync();
+                        lastSync = start;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } catch (IOException e) {
+            print("Unable to store file %s", file);
+        }
+    }
+
+    // Closes the journal output stream, if one is open.
+    private void closeStream() {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                print("Unable to store file %s", file);
+            }
+            stream = null;
+            fileStream = null;
+        }
+    }
+
+    /**
+     * Replays all intact events recorded in the journal. Torn tail records
+     * are truncated and corrupt or legacy content is compacted away.
+     *
+     * @return chronological list of recorded events
+     */
+    List<StepEvent> replay() {
+        synchronized (ioLock) {
+            return replayRecords();
+        }
+    }
+
+    // Reads back the intact records, recovering from torn tail if needed.
+    private List<StepEvent> replayRecords() {
+        List<StepEvent> events = Lists.newArrayList();
+        if (!file.exists()) {
+            return events;
+        }
+        try {
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            if (isLegacy(bytes)) {
+                events = replayLegacy();
+                compact(events);
+                return events;
+            }
+
+            int start = 0;
+            int intact = 0;
+            int corrupt = 0;
+            while (start < bytes.length) {
+                int end = indexOf(bytes, EOL, start);
+                if (end < 0) {
+                    break;
+                }
+                StepEvent event = decode(bytes, start, end);
+                if (event != null) {
+                    events.add(event);
+                    intact = end + 1;
+                } else {
+                    corrupt++;
+                }
+                start = end + 1;
+            }
+
+            if (intact < bytes.length) {
+                print("Recovered %d events; discarding torn journal tail in %s",
+                      events.size(), file);
+                truncate(intact);
+            }
+            if (corrupt > 0) {
+                compact(events);
+            }
+        } catch (IOException e) {
+            print("Unable to load file %s", file);
+        }
+        return events;
+    }
+
+    /**
+     * Atomically rewrites the journal to contain only the specified events.
+     *
+     * @param events live events
+     */
+    void compact(List<StepEvent> events) {
+        flush();
+        synchronized (ioLock) {
+            closeStream();
+            File temp = new File(file.getPath() + ".tmp");
+            try {
+                ensureDirectory();
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                for (StepEvent event : events) {
+                    out.write(encode(event));
+                }
+                Files.write(temp.toPath(), out.toByteArray());
+                Files.move(temp.toPath(), file.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+            } catch (IOException e) {
+                print("Unable to compact file %s", file);
+            }
+        }
+    }
+
+    /**
+     * Discards all journal records.
+     */
+    void clear() {
+        flush();
+        synchronized (ioLock) {
+            closeStream();
+            try {
+                ensureDirectory();
+                Files.write(file.toPath(), new byte[0]);
+            } catch (IOException e) {
+                print("Unable to store file %s", file);
+            }
+        }
+    }
+
+    /**
+     * Encodes the specified event as a journal record.
+     *
+     * @param event step event
+     * @return record bytes, including the line terminator
+     */
+    static byte[] encode(StepEvent event) {
+        byte[] payload = event.toString().getBytes(UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        String prefix = String.format("%08x", crc.getValue());
+
+        byte[] record = new byte[CRC_LENGTH + 1 + payload.length + 1];
+        System.arraycopy(prefix.getBytes(UTF_8), 0, record, 0, CRC_LENGTH);
+        record[CRC_LENGTH] = SEP;
+        System.arraycopy(payload, 0, record, CRC_LENGTH + 1, payload.length);
+        record[record.length - 1] = EOL;
+        return record;
+    }
+
+    /**
+     * Decodes the record spanning the specified range of bytes.
+     *
+     * @param bytes journal bytes
+     * @param start offset of the first record byte
+     * @param end   offset of the record terminator
+     * @return decoded event; null if the record is corrupt
+     */
+    static StepEvent decode(byte[] bytes, int start, int end) {
+        int offset = start + CRC_LENGTH + 1;
+        if (offset > end || bytes[start + CRC_LENGTH] != SEP) {
+            return null;
+        }
+        try {
+            long expected = Long.parseLong(new String(bytes, start, CRC_LENGTH, UTF_8), 16);
+            CRC32 crc = new CRC32();
+            crc.update(bytes, offset, end - offset);
+            if (crc.getValue() != expected) {
+                return null;
+            }
+            return StepEvent.fromString(new String(bytes, offset, end - offset, UTF_8));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // Indicates whether the file holds the legacy properties-based format.
+    private boolean isLegacy(byte[] bytes) {
+        int end = indexOf(bytes, EOL, 0);
+        String first = new String(bytes, 0, end < 0 ? bytes.length : end, UTF_8);
+        return LEGACY_RECORD.matcher(first).matches();
+    }
+
+    // Loads events stored using the legacy properties-based format.
+    private List<StepEvent> replayLegacy() {
+        List<StepEvent> events = Lists.newArrayList();
+        try {
+            PropertiesConfiguration cfg = new PropertiesConfiguration(file);
+            cfg.getKeys().forEachRemaining(prop -> events.add(StepEvent.fromString(cfg.getString(prop))));
+            events.sort(Comparator.comparingLong(StepEvent::time));
+        } catch (ConfigurationException e) {
+            print("Unable to load file %s", file);
+        }
+        return events;
+    }
+
+    // Truncates the journal file to the specified length.
+    private void truncate(long length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+    }
+
+    // Makes sure that the journal directory exists.
+    private void ensureDirectory() throws IOException {
+        Path parent = file.toPath().toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+    }
+
+    // Returns index of the first occurrence of the given byte at or past start.
+    private static int indexOf(byte[] bytes, byte b, int start) {
+        for (int i = start; i < bytes.length; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
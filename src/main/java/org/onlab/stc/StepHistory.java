@@ -0,0 +1,234 @@
+/*
+ * Copyright 2015-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onlab.stc;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.PropertiesConfiguration;
+
+import java.io.File;
+import java.util.Map;
+
+import static org.onlab.stc.Coordinator.print;
+
+/**
+ * Statistics about test steps accrued across multiple scenario runs.
+ */
+class StepHistory {
+
+    private static final String DURATION = "duration.";
+    private static final String RUNS = "runs.";
+    private static final String FLAKY = "flaky.";
+    private static final String RETRIES = "retries.";
+    private static final String WASTED = "wasted.";
+
+    // Weight given to the most recent observation
+    private static final double WEIGHT = 0.5;
+
+    private final File file;
+    private final Map<String, Long> durations = Maps.newConcurrentMap();
+    private final Map<String, Flakiness> flakiness = Maps.newConcurrentMap();
+
+    /**
+     * Creates a step history backed by the specified file.
+     *
+     * @param file history file
+     */
+    StepHistory(File file) {
+        this.file = file;
+        load();
+    }
+
+    /**
+     * Returns the file backing the history.
+     *
+     * @return history file
+     */
+    File file() {
+        return file;
+    }
+
+    /**
+     * Returns the expected duration of the specified step, based on its
+     * duration in previous runs.
+     *
+     * @param name step name
+     * @return expected duration in millis; -1 if not known
+     */
+    long duration(String name) {
+        Long duration = durations.get(name);
+        return duration != null ? duration : -1;
+    }
+
+    /**
+     * Records the duration observed for the specified step during this run.
+     *
+     * @param name     step name
+     * @param duration step duration in millis
+     */
+    void recordDuration(String name, long duration) {
+        durations.merge(name, duration,
+                        (old, now) -> Math.round(WEIGHT * now + (1 - WEIGHT) * old));
+    }
+
+    /**
+     * Returns the flakiness record of the specified step.
+     *
+     * @param name step name
+     * @return flakiness record; null if the step has no recorded runs
+     */
+    Flakiness flakiness(String name) {
+        return flakiness.get(name);
+    }
+
+    /**
+     * Returns the flakiness records of all steps with recorded runs.
+     *
+     * @return map of step names to flakiness records
+     */
+    Map<String, Flakiness> flakiness() {
+        return ImmutableMap.copyOf(flakiness);
+    }
+
+    /**
+     * Records the outcome of the specified step during this run.
+     *
+     * @param name           step name
+     * @param succeeded      true if the step eventually succeeded
+     * @param failedAttempts number of attempts that failed and were retried
+     * @param wastedMillis   time spent on the attempts that failed
+     */
+    void recordOutcome(String name, boolean succeeded, int failedAttempts, long wastedMillis) {
+        Flakiness run = new Flakiness(1, succeeded && failedAttempts > 0 ? 1 : 0,
+                                      failedAttempts, wastedMillis);
+        flakiness.merge(name, run, Flakiness::add);
+    }
+
+    /**
+     * Loads the history from disk.
+     */
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            PropertiesConfiguration cfg = new PropertiesConfiguration(file);
+            cfg.getKeys(DURATION.substring(0, DURATION.length() - 1)).forEachRemaining(key -> {
+                durations.put(key.substring(DURATION.length()), cfg.getLong(key));
+            });
+            cfg.getKeys(RUNS.substring(0, RUNS.length() - 1)).forEachRemaining(key -> {
+                String name = key.substring(RUNS.length());
+                flakiness.put(name, new Flakiness(cfg.getLong(key), cfg.getLong(FLAKY + name, 0),
+                                                  cfg.getLong(RETRIES + name, 0),
+                                                  cfg.getLong(WASTED + name, 0)));
+            });
+        } catch (ConfigurationException e) {
+            print("Unable to load file %s", file);
+        }
+    }
+
+    /**
+     * Saves the history to disk.
+     */
+    synchronized void save() {
+        try {
+            PropertiesConfiguration cfg = new PropertiesConfiguration();
+            durations.forEach((name, duration) -> cfg.setProperty(DURATION + name, duration));
+            flakiness.forEach((name, f) -> {
+                cfg.setProperty(RUNS + name, f.runs());
+                cfg.setProperty(FLAKY + name, f.flakyRuns());
+                cfg.setProperty(RETRIES + name, f.failedAttempts());
+                cfg.setProperty(WASTED + name, f.wastedMillis());
+            });
+            cfg.save(file);
+        } catch (ConfigurationException e) {
+            print("Unable to store file %s", file);
+        }
+    }
+
+    /**
+     * Record of how often a step had to be retried across runs and how
+     * much time the failed attempts took.
+     */
+    static final class Flakiness {
+        private final long runs;
+        private final long flakyRuns;
+        private final long failedAttempts;
+        private final long wastedMillis;
+
+        private Flakiness(long runs, long flakyRuns, long failedAttempts, long wastedMillis) {
+            this.runs = runs;
+            this.flakyRuns = flakyRuns;
+            this.failedAttempts = failedAttempts;
+            this.wastedMillis = wastedMillis;
+        }
+
+        private Flakiness add(Flakiness other) {
+            return new Flakiness(runs + other.runs, flakyRuns + other.flakyRuns,
+                                 failedAttempts + other.failedAttempts,
+                                 wastedMillis + other.wastedMillis);
+        }
+
+        /**
+         * Returns the number of runs in which the step completed.
+         *
+         * @return number of runs
+         */
+        long runs() {
+            return runs;
+        }
+
+        /**
+         * Returns the number of runs in which the step succeeded only after
+         * being retried.
+         *
+         * @return number of flaky runs
+         */
+        long flakyRuns() {
+            return flakyRuns;
+        }
+
+        /**
+         * Returns the total number of attempts that failed and were retried.
+         *
+         * @return number of failed attempts
+         */
+        long failedAttempts() {
+            return failedAttempts;
+        }
+
+        /**
+         * Returns the total time spent on attempts that failed.
+         *
+         * @return number of millis
+         */
+        long wastedMillis() {
+            return wastedMillis;
+        }
+
+        /**
+         * Returns the fraction of runs in which the step succeeded only
+         * after being retried.
+         *
+         * @return flake rate between 0 and 1
+         */
+        double rate() {
+            return runs > 0 ? (double) flakyRuns / runs : 0.0;
+        }
+    }
+
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2015-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onlab.stc;
+
+import com.google.common.collect.Maps;
+import com.google.common.io.CountingOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.onlab.stc.Coordinator.print;
+
+/**
+ * Logs of step processes kept in the scenario log directory, optionally
+ * compressed as they are being written. The tail of each log is also kept
+ * in memory so that it can be reported without re-reading the log.
+ */
+final class StepLogs {
+
+    private static final String SUFFIX = ".log";
+    private static final String GZIP_SUFFIX = ".log.gz";
+    private static final int BUFFER_SIZE = 65_536;
+    private static final int TAIL_SIZE = 16_384;
+
+    private final File dir;
+    private boolean compress = false;
+
+    private final Map<String, LogTail> tails = Maps.newConcurrentMap();
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong writeNanos = new AtomicLong();
+
+    /**
+     * Creates step logs kept in the specified directory.
+     *
+     * @param dir log directory
+     */
+    StepLogs(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Enables or disables compression of logs written from now on.
+     *
+     * @param compress true to compress logs
+     */
+    void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    /**
+     * Returns the file to which the output of the specified step is to be
+     * redirected verbatim.
+     *
+     * @param step test step
+     * @return uncompressed log file
+     */
+    File file(Step step) {
+        return new File(dir, step.name() + SUFFIX);
+    }
+
+    /**
+     * Opens a stream for writing the log of the specified step. Output is
+     * compressed if so configured, and the amount of output and the time
+     * spent writing it are tallied.
+     *
+     * @param step test step
+     * @return log output stream
+     * @throws IOException if unable to create the log file
+     */
+    OutputStream open(Step step) throws IOException {
+        File file = new File(dir, step.name() + (compress ? GZIP_SUFFIX : SUFFIX));
+        CountingOutputStream counter = new CountingOutputStream(new FileOutputStream(file));
+        OutputStream out = compress ?
+                new FastGZIPOutputStream(counter) :
+                new BufferedOutputStream(counter, BUFFER_SIZE);
+        LogTail tail = new LogTail(file, TAIL_SIZE);
+        tails.put(step.name(), tail);
+        return new TallyingOutputStream(out, counter, tail);
+    }
+
+    /**
+     * Tallies the output of a step that was redirected to its log verbatim
+     * and picks up its tail from the end of the log file.
+     *
+     * @param step test step
+     */
+    void tally(Step step) {
+        File file = file(step);
+        long length = file.length();
+        written.addAndGet(length);
+        stored.addAndGet(length);
+
+        LogTail tail = new LogTail(file, TAIL_SIZE);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            // One byte more than fits, so that the tail knows it is truncated
+            byte[] bytes = new byte[(int) Math.min(length, TAIL_SIZE + 1)];
+            raf.seek(length - bytes.length);
+            raf.readFully(bytes);
+            tail.append(bytes, 0, bytes.length);
+        } catch (IOException e) {
+            print("Unable to read tail of %s", file);
+        }
+        tails.put(step.name(), tail);
+    }
+
+    /**
+     * Returns the in-memory tail of the log of the specified step.
+     *
+     * @param step test step
+     * @return log tail; null if the step has not logged anything
+     */
+    LogTail tail(Step step) {
+        return tails.get(step.name());
+    }
+
+    /**
+     * Discards the in-memory tail of the log of the specified step.
+     *
+     * @param step test step
+     */
+    void discardTail(Step step) {
+        tails.remove(step.name());
+    }
+
+    /**
+     * Returns a summary of the log output written so far.
+     *
+     * @return log statistics
+     */
+    String stats() {
+        long nanos = writeNanos.get();
+        return String.format("logs: %.1f MB written; %.1f MB stored; compression ratio %.1f; " +
+                                     "write throughput %.1f MB/s",
+                             written.get() / 1e6, stored.get() / 1e6,
+                             stored.get() > 0 ? (double) written.get() / stored.get() : 1.0,
+                             nanos > 0 ? written.get() * 1e3 / nanos : 0.0);
+    }
+
+    /**
+     * Opens the log of the specified step for reading, decompressing it
+     * transparently if need be.
+     *
+     * @param step test step
+     * @return log input stream
+     * @throws IOException if the log does not exist or cannot be read
+     */
+    InputStream read(Step step) throws IOException {
+        return read(dir, step.name());
+    }
+
+    /**
+     * Opens the log of the specified step for reading, decompressing it
+     * transparently if need be.
+     *
+     * @param dir  log directory
+     * @param name step name
+     * @return log input stream
+     * @throws IOException if the log does not exist or cannot be read
+     */
+    static InputStream read(File dir, String name) throws IOException {
+        File gzip = new File(dir, name + GZIP_SUFFIX);
+        File plain = new File(dir, name + SUFFIX);
+        if (gzip.exists() && (!plain.exists() || gzip.lastModified() >= plain.lastModified())) {
+            return new GZIPInputStream(new FileInputStream(gzip), BUFFER_SIZE);
+        }
+        return new BufferedInputStream(new FileInputStream(plain), BUFFER_SIZE);
+    }
+
+    /**
+     * Deletes the log of the specified step, whether compressed or not.
+     *
+     * @param dir  log directory
+     * @param name step name
+     */
+    static void delete(File dir, String name) {
+        for (File file : new File[]{new File(dir, name + SUFFIX), new File(dir, name + GZIP_SUFFIX)}) {
+            if (file.exists() && !file.delete()) {
+                print("Unable to delete log file %s", file);
+            }
+        }
+    }
+
+    // Compressor favouring speed over ratio, so as to keep up with chatty steps
+    private static final class FastGZIPOutputStream extends GZIPOutputStream {
+        private FastGZIPOutputStream(OutputStream out) throws IOException {
+            super(out, BUFFER_SIZE);
+            def.setLevel(Deflater.BEST_SPEED);
+        }
+    }
+
+    // Log stream which tallies bytes written and time spent writing them
+    private final class TallyingOutputStream extends FilterOutputStream {
+        private final CountingOutputStream counter;
+        private final LogTail tail;
+        private long count;
+
+        private TallyingOutputStream(OutputStream out, CountingOutputStream counter,
+                                     LogTail tail) {
+            super(out);
+            this.counter = counter;
+            this.tail = tail;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            long start = System.nanoTime();
+            out.write(bytes, offset, length);
+            writeNanos.addAndGet(System.nanoTime() - start);
+            tail.append(bytes, offset, length);
+            count += length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            long start = System.nanoTime();
+            super.close();
+            writeNanos.addAndGet(System.nanoTime() - start);
+            written.addAndGet(count);
+            stored.addAndGet(counter.getCount());
+        }
+    }
+
+}
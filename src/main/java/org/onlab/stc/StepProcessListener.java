@@ -20,6 +20,15 @@ package org.onlab.stc;
  */
 public interface StepProcessListener {
 
+    /**
+     * Indicates that process step is waiting out its start delay.
+     *
+     * @param step   subject step
+     * @param millis start delay in millis
+     */
+    default void onDelay(Step step, long millis) {
+    }
+
     /**
      * Indicates that process step has started.
      *
@@ -38,6 +47,36 @@ public interface StepProcessListener {
     default void onCompletion(Step step, Coordinator.Status status) {
     }
 
+    /**
+     * Indicates that process step ran out of time, or that a group ran past
+     * its deadline. Completion of the step as failed follows.
+     *
+     * @param step subject step
+     */
+    default void onTimeout(Step step) {
+    }
+
+    /**
+     * Indicates that the result of process step was restored from the step
+     * cache rather than by executing its process. Completion of the step
+     * follows.
+     *
+     * @param step subject step
+     */
+    default void onCacheHit(Step step) {
+    }
+
+    /**
+     * Indicates that an attempt to run the process step failed and that the
+     * step will be re-run once the retry delay elapses.
+     *
+     * @param step        subject step
+     * @param attempt     number of the attempt that failed, starting at 1
+     * @param delayMillis retry delay in millis
+     */
+    default void onRetry(Step step, int attempt, long delayMillis) {
+    }
+
     /**
      * Notifies when a new line of output becomes available.
      *
@@ -47,4 +86,25 @@ public interface StepProcessListener {
     default void onOutput(Step step, String line) {
     }
 
+    /**
+     * Notifies when a batch of new lines of output becomes available. By
+     * default, each of the lines is passed on to the single-line callback.
+     *
+     * @param step  subject step
+     * @param batch batch of output lines
+     */
+    default void onOutput(Step step, OutputBatch batch) {
+        batch.lines().forEach(line -> onOutput(step, line));
+    }
+
+    /**
+     * Indicates whether the listener wants to be notified of step output.
+     * Output is not delivered at all unless somebody wants it.
+     *
+     * @return true if output notifications are wanted
+     */
+    default boolean wantsOutput() {
+        return true;
+    }
+
 }
@@ -15,21 +15,38 @@
  */
 package org.onlab.stc;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import org.eclipse.jetty.util.QuotedStringTokenizer;
+import org.onlab.stc.Coordinator.Capture;
 import org.onlab.stc.Coordinator.Status;
+import org.onlab.stc.ProcessReactor.Lines;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.stream.Collectors;
 
-import static java.lang.String.format;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.onlab.stc.Coordinator.Status.CANCELLED;
 import static org.onlab.stc.Coordinator.Status.FAILED;
 import static org.onlab.stc.Coordinator.Status.SUCCEEDED;
+import static org.onlab.stc.Coordinator.TIMER;
 import static org.onlab.stc.Coordinator.print;
 
 /**
@@ -41,16 +58,52 @@ class StepProcessor implements Runnable {
     private static final String NEGATE_CODE = "!";
 
     private static final int FAIL = -1;
-    private static final int SECONDS = 1_000;
 
-    static String launcher = "stc-launcher ";
+    private static final String EXPORT_PREFIX = "@stc ";
+
+    // How long after being killed a cancelled process is given to report its exit
+    private static final long ABANDON_MILLIS = 1_000;
+
+    // Shared supervisor of all step processes
+    private static final ProcessReactor REACTOR = new ProcessReactor();
+
+    // Threads evaluating environment files and hashing, restoring and filing
+    // cached step results, which may take a while and must not hold up the
+    // reactor worker
+    private static final int IO_THREADS = 4;
+    private static final ExecutorService IO = newFixedThreadPool(IO_THREADS, r -> {
+        Thread thread = new Thread(r, "stc-io");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private final Step step;
-    private final File logDir;
+    private final StepLogs logs;
     private String command;
+    private final Capture capture;
+    private final boolean exports;
+    private final EnvFiles envFiles;
+    private final LauncherPool launchers;
+    private final StepCache cache;
 
     private Process process;
     private StepProcessListener delegate;
+    private final CompletableFuture<Status> completion = new CompletableFuture<>();
+
+    // Confined to the reactor worker thread, save for the cache key and the
+    // environment, which are set by an I/O thread before control is handed
+    // back to the worker
+    private ProcessHandle handle;
+    private CompletableFuture<Integer> builtin;
+    private boolean timedOut;
+    private boolean cancelled;
+    private long graceMillis;
+    private ScheduledFuture<?> timer;
+    private String cacheKey;
+    private Map<String, String> environment;
+    private boolean cached;
+    private boolean storing;
+    private long startMillis;
 
     /**
      * Creates a process monitor.
@@ -62,104 +115,381 @@ class StepProcessor implements Runnable {
      */
     StepProcessor(Step step, File logDir, StepProcessListener delegate,
                   String command) {
+        this(step, new StepLogs(logDir), delegate, command, Capture.PIPE, true);
+    }
+
+    /**
+     * Creates a process monitor using the specified output capture.
+     *
+     * @param step     step or group to be executed
+     * @param logs     step logs where step process log should be stored
+     * @param delegate process lifecycle listener
+     * @param command  actual command to execute
+     * @param capture  means of capturing output in the step log
+     * @param exports  true if properties exported via output are needed
+     */
+    StepProcessor(Step step, StepLogs logs, StepProcessListener delegate,
+                  String command, Capture capture, boolean exports) {
+        this(step, logs, delegate, command, capture, exports, new EnvFiles(), null, null);
+    }
+
+    /**
+     * Creates a process monitor using the specified output capture and,
+     * optionally, a pool of launcher workers. Steps launched directly get
+     * their environment from the given cache of environment files, while
+     * launcher workers evaluate the environment files themselves. Steps
+     * launched via a worker always have their output redirected straight
+     * into the step log. Results of cacheable steps are restored from the
+     * given step cache, if found there, rather than by executing the step.
+     *
+     * @param step      step or group to be executed
+     * @param logs      step logs where step process log should be stored
+     * @param delegate  process lifecycle listener
+     * @param command   actual command to execute
+     * @param capture   means of capturing output in the step log
+     * @param exports   true if properties exported via output are needed
+     * @param envFiles  cache of evaluated environment files
+     * @param launchers pool of launcher workers; null to launch directly
+     * @param cache     cache of step results; null if not to be used
+     */
+    StepProcessor(Step step, StepLogs logs, StepProcessListener delegate,
+                  String command, Capture capture, boolean exports,
+                  EnvFiles envFiles, LauncherPool launchers, StepCache cache) {
         this.step = step;
-        this.logDir = logDir;
+        this.logs = logs;
         this.delegate = delegate;
         this.command = command;
+        this.capture = capture;
+        this.exports = exports;
+        this.envFiles = envFiles;
+        this.launchers = launchers;
+        this.cache = cache;
     }
 
-    @Override
-    public void run() {
+    /**
+     * Starts the step process without blocking the caller or holding on to
+     * a thread while the process runs.
+     *
+     * @return future completed with the step status
+     */
+    CompletableFuture<Status> start() {
+        startMillis = System.currentTimeMillis();
         delegate.onStart(step, command);
-        delayIfNeeded();
-        int code = execute();
-        boolean ignoreCode = step.env() != null && step.env.equals(IGNORE_CODE);
-        boolean negateCode = step.env() != null && step.env.equals(NEGATE_CODE);
-        Status status = ignoreCode || code == 0 && !negateCode || code != 0 && negateCode ?
-                SUCCEEDED : FAILED;
-        delegate.onCompletion(step, status);
+        if (step.timeoutMillis() > 0) {
+            timer = TIMER.schedule(this::expire, step.timeoutMillis(), MILLISECONDS);
+        }
+        REACTOR.submit(this::execute);
+        return completion;
     }
 
     /**
-     * Pauses if the step requires it.
+     * Terminates the step process, along with all its descendants, as one
+     * that ran out of time. The step then completes as failed.
      */
-    private void delayIfNeeded() {
-        if (step.delay() > 0) {
-            try {
-                Thread.sleep(step.delay() * SECONDS);
-            } catch (InterruptedException e) {
-                throw new RuntimeException("Interrupted", e);
+    void expire() {
+        REACTOR.submit(() -> {
+            if (completion.isDone() || timedOut) {
+                return;
             }
-        }
+            timedOut = true;
+            delegate.onTimeout(step);
+            if (builtin != null) {
+                builtin.complete(FAIL);
+            } else if (handle != null) {
+                destroyTree(handle, launchers == null);
+            }
+            // Otherwise the worker has yet to report the process it spawned
+        });
     }
 
     /**
-     * Executes the step process.
+     * Cancels the step, asking its process and all its descendants to
+     * terminate and killing them if they are still around once the grace
+     * period is over. The step then completes as cancelled, at the latest
+     * shortly after the grace period, whether or not the process exits.
      *
-     * @return exit code
+     * @param graceMillis number of millis to wait before killing the process
      */
-    private int execute() {
-        try (PrintWriter pw = new PrintWriter(logFile())) {
-            // Delimit using space or tabs, but preserve strings between quotes as one token.
-            QuotedStringTokenizer st = new QuotedStringTokenizer(command, " \t");
-            List<String> cmdList = new ArrayList<>();
-            while (st.hasMoreTokens()) {
-                cmdList.add(st.nextToken());
+    void cancel(long graceMillis) {
+        REACTOR.submit(() -> {
+            if (completion.isDone() || cancelled) {
+                return;
             }
-            process = Runtime.getRuntime().exec(cmdList.toArray(new String[]{}), null, null);
-            processOutput(pw);
-
-            // Wait for the process to complete and get its exit code.
-            if (process.isAlive()) {
-                process.waitFor();
+            cancelled = true;
+            this.graceMillis = graceMillis;
+            TIMER.schedule(() -> REACTOR.submit(() -> complete(FAIL)),
+                           graceMillis + ABANDON_MILLIS, MILLISECONDS);
+            if (builtin != null) {
+                builtin.complete(FAIL);
+            } else if (handle != null) {
+                terminateTree(handle, launchers == null, graceMillis);
             }
-            return process.exitValue();
+            // Otherwise the worker has yet to report the process it spawned
+        });
+    }
 
-        } catch (IOException e) {
-            print("Unable to run step %s using command %s", step.name(), step.command());
-        } catch (InterruptedException e) {
-            print("Step %s interrupted", step.name());
+    // Returns the specified process, if so asked, followed by all its descendants
+    private static List<ProcessHandle> tree(ProcessHandle handle, boolean includingRoot) {
+        // Snapshot descendants up front, as they get orphaned once their parent is gone
+        List<ProcessHandle> tree = handle.descendants().collect(Collectors.toList());
+        if (includingRoot) {
+            tree.add(0, handle);
         }
-        return FAIL;
+        return tree;
+    }
+
+    // Kills all descendants of the specified process and, optionally, the process itself
+    private static void destroyTree(ProcessHandle handle, boolean includingRoot) {
+        tree(handle, includingRoot).forEach(ProcessHandle::destroyForcibly);
+    }
+
+    // Asks the process tree to terminate and kills whatever outlives the grace period
+    private static void terminateTree(ProcessHandle handle, boolean includingRoot, long graceMillis) {
+        List<ProcessHandle> tree = tree(handle, includingRoot);
+        tree.forEach(ProcessHandle::destroy);
+        TIMER.schedule(() -> tree.stream().filter(ProcessHandle::isAlive)
+                               .forEach(ProcessHandle::destroyForcibly),
+                       graceMillis, MILLISECONDS);
+    }
+
+    // Notes the process spawned by a launcher worker on behalf of the step;
+    // it is spared when the step expires or is cancelled, so that it can
+    // report the exit code
+    private void spawned(ProcessHandle spawned) {
+        REACTOR.submit(() -> {
+            handle = spawned;
+            if (completion.isDone()) {
+                return;
+            }
+            if (timedOut) {
+                destroyTree(spawned, false);
+            } else if (cancelled) {
+                terminateTree(spawned, false, graceMillis);
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        start().join();
     }
 
     /**
-     * Returns ready-to-run command for the step.
-     *
-     * @return command to execute
+     * Executes the step, restoring its cached result if there is one, or
+     * else launching the step process and registering it for supervision.
      */
-    private String command() {
-        return format("%s %s %s %s", launcher,
-                      step.env() != null ? step.env() : "-",
-                      step.cwd() != null ? step.cwd() : "-",
-                      command);
+    private void execute() {
+        // Delimit using space or tabs, but preserve strings between quotes as one token.
+        QuotedStringTokenizer st = new QuotedStringTokenizer(command, " \t");
+        List<String> cmdList = new ArrayList<>();
+        while (st.hasMoreTokens()) {
+            cmdList.add(st.nextToken());
+        }
+
+        // Only lines somebody wants are ever decoded
+        Lines filter = delegate.wantsOutput() ? Lines.ALL : exports ? Lines.EXPORTS : Lines.NONE;
+
+        // Cached results are restored rather than reproduced. The lookup, as
+        // well as evaluation of environment files yet to be evaluated, is
+        // carried out by the I/O threads, which hand back to the worker
+        boolean cacheable = cache != null && StepCache.isCacheable(step);
+        boolean direct = launchers == null && !Builtins.isBuiltin(cmdList);
+        environment = cacheable || direct ? envFiles.evaluated(step) : ImmutableMap.of();
+        if (cacheable || environment == null) {
+            CompletableFuture.supplyAsync(() -> prepare(cacheable, filter), IO)
+                    .whenComplete((code, error) -> REACTOR.submit(() -> {
+                        if (error != null) {
+                            Throwable cause = error.getCause() != null ? error.getCause() : error;
+                            print("Unable to run step %s using command %s: %s",
+                                  step.name(), step.command(), cause.getMessage());
+                            complete(FAIL);
+                        } else if (code != null) {
+                            cached = true;
+                            delegate.onCacheHit(step);
+                            complete(code);
+                        } else if (timedOut || cancelled) {
+                            complete(FAIL);
+                        } else {
+                            launch(cmdList, filter);
+                        }
+                    }));
+            return;
+        }
+        launch(cmdList, filter);
     }
 
     /**
-     * Captures output of the step process.
+     * Launches the step process and registers it for supervision.
      *
-     * @param pw print writer to send output to
-     * @throws IOException if unable to read output or write logs
+     * @param cmdList command tokens
+     * @param filter  lines of output to be delivered
      */
-    private void processOutput(PrintWriter pw) throws IOException {
-        InputStream out = process.getInputStream();
-        BufferedReader br = new BufferedReader(new InputStreamReader(out));
-
-        // Slurp its combined stderr/stdout
-        String line;
-        while ((line = br.readLine()) != null) {
-            pw.println(line);
-            delegate.onOutput(step, line);
+    private void launch(List<String> cmdList, Lines filter) {
+        OutputStream log = null;
+        try {
+            // Built-in actions are carried out in-process
+            if (Builtins.isBuiltin(cmdList)) {
+                OutputStream builtinLog = log = logs.open(step);
+                builtin = Builtins.execute(cmdList, step.cwd(), line -> output(builtinLog, filter, line));
+                builtin.thenAccept(code -> REACTOR.submit(() -> {
+                            closeQuietly(builtinLog);
+                            complete(code);
+                        }));
+                return;
+            }
+
+            // Slurp its combined stderr/stdout
+            ProcessBuilder builder = new ProcessBuilder(cmdList).redirectErrorStream(true);
+            if (launchers == null) {
+                if (step.cwd() != null) {
+                    builder.directory(new File(step.cwd()));
+                }
+                builder.environment().putAll(environment);
+            }
+            if (launchers != null || capture == Capture.FILE) {
+                File file = logs.file(step);
+                CompletableFuture<Integer> exit;
+                if (launchers != null) {
+                    // Truncate the log up front; the worker only appends to it
+                    new FileOutputStream(file).close();
+                    exit = launchers.launch(step, cmdList, file, this::spawned);
+                } else {
+                    process = builder.redirectOutput(file).start();
+                    handle = process.toHandle();
+                    exit = process.onExit().thenApply(Process::exitValue);
+                }
+                REACTOR.register(exit, filter != Lines.NONE ? new FileInputStream(file) : null,
+                                 null, filter, batch -> delegate.onOutput(step, batch),
+                                 () -> {
+                                     logs.tally(step);
+                                     complete(exit.join());
+                                 });
+            } else {
+                log = logs.open(step);
+                process = builder.start();
+                handle = process.toHandle();
+                REACTOR.register(process.onExit(), process.getInputStream(), log,
+                                 filter, batch -> delegate.onOutput(step, batch),
+                                 () -> complete(process.exitValue()));
+            }
+
+        } catch (IOException | RuntimeException e) {
+            print("Unable to run step %s using command %s: %s", step.name(), step.command(), e.getMessage());
+            closeQuietly(log);
+            complete(FAIL);
+        }
+    }
+
+    // Evaluates the step environment and, if so asked, looks up the cached
+    // result of the step and restores it; returns the cached exit code or
+    // null if there is no such result
+    private Integer prepare(boolean cacheable, Lines filter) {
+        try {
+            environment = envFiles.environment(step);
+            if (!cacheable) {
+                return null;
+            }
+            cacheKey = cache.key(step, command, environment);
+            Integer code = cache.lookup(cacheKey);
+            if (code != null) {
+                restore(filter);
+            }
+            return code;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Restores the cached result of the step and delivers the wanted lines of its log
+    private void restore(Lines filter) throws IOException {
+        try (OutputStream log = logs.open(step)) {
+            cache.restore(step, cacheKey, log);
+        }
+        if (filter != Lines.NONE) {
+            List<String> lines = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(cache.openLog(cacheKey), Charset.defaultCharset()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (filter == Lines.ALL || line.startsWith(EXPORT_PREFIX)) {
+                        lines.add(line);
+                    }
+                }
+            }
+            if (!lines.isEmpty()) {
+                long[] times = new long[lines.size()];
+                Arrays.fill(times, System.currentTimeMillis());
+                delegate.onOutput(step, new OutputBatch(lines, times));
+            }
+        }
+    }
+
+    // Files the result of a successful run of the step in the cache
+    private void store(int code, long millis) {
+        try (InputStream log = logs.read(step)) {
+            cache.store(step, cacheKey, code, millis, log);
+        } catch (IOException e) {
+            print("Unable to cache result of step %s: %s", step.name(), e.getMessage());
+        }
+    }
+
+    // Writes a line of built-in action output to the log and delivers it if wanted
+    private void output(OutputStream log, Lines filter, String line) {
+        try {
+            log.write((line + "\n").getBytes(Charset.defaultCharset()));
+        } catch (IOException e) {
+            print("Unable to write log for step %s", step.name());
+        }
+        if (filter == Lines.ALL || filter == Lines.EXPORTS && line.startsWith(EXPORT_PREFIX)) {
+            delegate.onOutput(step, new OutputBatch(ImmutableList.of(line),
+                                                    new long[]{System.currentTimeMillis()}));
+        }
+    }
+
+    // Closes the specified log stream, if any
+    private static void closeQuietly(OutputStream log) {
+        try {
+            if (log != null) {
+                log.close();
+            }
+        } catch (IOException e) {
+            print("Unable to close log");
         }
     }
 
     /**
-     * Returns the log file for the step output.
+     * Notifies the delegate of the step completion status derived from the
+     * process exit code, unless the step ran out of time or was cancelled.
      *
-     * @return log file
+     * @param code exit code
      */
-    private File logFile() {
-        return new File(logDir, step.name() + ".log");
+    private void complete(int code) {
+        if (completion.isDone() || storing) {
+            return;
+        }
+        if (timer != null) {
+            timer.cancel(false);
+        }
+        boolean ignoreCode = step.env() != null && step.env.equals(IGNORE_CODE);
+        boolean negateCode = step.env() != null && step.env.equals(NEGATE_CODE);
+        Status status = cancelled ? CANCELLED :
+                !timedOut && (ignoreCode || code == 0 && !negateCode || code != 0 && negateCode) ?
+                        SUCCEEDED : FAILED;
+        if (cacheKey != null && !cached && status == SUCCEEDED) {
+            // The result is filed by an I/O thread before completion is reported
+            storing = true;
+            long millis = System.currentTimeMillis() - startMillis;
+            CompletableFuture.runAsync(() -> store(code, millis), IO)
+                    .whenComplete((result, error) -> REACTOR.submit(() -> finish(status)));
+            return;
+        }
+        finish(status);
+    }
+
+    // Reports the completion status to the delegate and to whoever awaits it
+    private void finish(Status status) {
+        delegate.onCompletion(step, status);
+        completion.complete(status);
     }
 
 }
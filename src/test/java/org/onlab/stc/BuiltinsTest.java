@@ -0,0 +1,121 @@
+/*
+ * Copyright 2015-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onlab.stc;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.onlab.stc.Coordinator.Capture;
+import org.onlab.stc.Coordinator.Status;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.onlab.stc.Coordinator.Status.FAILED;
+import static org.onlab.stc.Coordinator.Status.SUCCEEDED;
+
+/**
+ * Test of the built-in step actions.
+ */
+public class BuiltinsTest {
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private final List<String> lines = Lists.newArrayList();
+
+    private Status run(String command) {
+        return run(command, null);
+    }
+
+    private Status run(String command, String cwd) {
+        File dir = testFolder.getRoot();
+        Step step = new Step("builtin", command, null, cwd, null, 0);
+        StepProcessListener delegate = new StepProcessListener() {
+            @Override
+            public void onOutput(Step step, String line) {
+                lines.add(line);
+            }
+        };
+        return new StepProcessor(step, new StepLogs(dir), delegate, command,
+                                 Capture.PIPE, true).start().join();
+    }
+
+    private List<String> log() throws IOException {
+        return Files.readAllLines(new File(testFolder.getRoot(), "builtin.log").toPath());
+    }
+
+    @Test
+    public void echo() throws IOException {
+        assertEquals("incorrect status", SUCCEEDED, run("stc:echo hello \"big world\""));
+        assertEquals("incorrect output", ImmutableList.of("hello big world"), lines);
+        assertEquals("incorrect log", ImmutableList.of("hello big world"), log());
+    }
+
+    @Test
+    public void sleep() {
+        long start = System.currentTimeMillis();
+        assertEquals("incorrect status", SUCCEEDED, run("stc:sleep 0.2"));
+        assertTrue("should have slept", System.currentTimeMillis() - start >= 200);
+    }
+
+    @Test
+    public void touchAndExists() {
+        String path = new File(testFolder.getRoot(), "marker").getPath();
+        assertEquals("incorrect status", FAILED, run("stc:exists " + path));
+        assertEquals("incorrect status", SUCCEEDED, run("stc:touch " + path));
+        assertEquals("incorrect status", SUCCEEDED, run("stc:exists " + path));
+    }
+
+    @Test
+    public void relativeToCwd() throws IOException {
+        String cwd = testFolder.newFolder("cwd").getPath();
+        assertEquals("incorrect status", FAILED, run("stc:exists relative", cwd));
+        assertEquals("incorrect status", SUCCEEDED, run("stc:touch relative", cwd));
+        assertTrue("should be created in cwd", new File(cwd, "relative").exists());
+        assertEquals("incorrect status", SUCCEEDED, run("stc:exists relative", cwd));
+        assertEquals("incorrect status", FAILED, run("stc:exists relative"));
+    }
+
+    @Test
+    public void port() throws IOException {
+        try (ServerSocket server = new ServerSocket(0)) {
+            assertEquals("incorrect status", SUCCEEDED,
+                         run("stc:port localhost:" + server.getLocalPort() + " 5"));
+        }
+        int closed;
+        try (ServerSocket server = new ServerSocket(0)) {
+            closed = server.getLocalPort();
+        }
+        assertEquals("incorrect status", FAILED, run("stc:port " + closed + " 0.5"));
+        assertEquals("incorrect status", FAILED, run("stc:port no-such-host.invalid:80 0.5"));
+        assertEquals("incorrect log", ImmutableList.of("Unable to resolve no-such-host.invalid"), log());
+    }
+
+    @Test
+    public void unknown() throws IOException {
+        assertEquals("incorrect status", FAILED, run("stc:frobnicate"));
+        assertEquals("incorrect log", ImmutableList.of("Unknown built-in action stc:frobnicate"), log());
+    }
+
+}
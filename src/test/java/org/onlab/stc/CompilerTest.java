@@ -18,19 +18,26 @@ package org.onlab.stc;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.onlab.junit.IntegrationTest;
 import org.onlab.util.Tools;
 
 import com.google.common.io.Files;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 
 import static com.google.common.io.ByteStreams.toByteArray;
 import static com.google.common.io.Files.write;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.onlab.stc.Coordinator.print;
 import static org.onlab.stc.Scenario.loadScenario;
 
 /**
@@ -48,6 +55,9 @@ public class CompilerTest {
         stageTestResource("simple-scenario.xml");
         stageTestResource("one-scenario.xml");
         stageTestResource("two-scenario.xml");
+        stageTestResource("pool-scenario.xml");
+        stageTestResource("env-scenario.xml");
+        stageTestResource("timeout-scenario.xml");
 
         System.setProperty("prop.foo", "Foobar");
         System.setProperty("prop.bar", "Barfoo");
@@ -84,6 +94,10 @@ public class CompilerTest {
         assertEquals("incorrect logDir",
                      new File(testDir.getAbsolutePath(), "foo"), compiler.logDir());
 
+        assertEquals("incorrect step ids", 33,
+                     flow.getVertexes().stream().mapToInt(Step::id)
+                             .filter(id -> id >= 0 && id < 33).distinct().count());
+
         Step step = compiler.getStep("there");
         assertEquals("incorrect edge count", 2, flow.getEdgesFrom(step).size());
         assertEquals("incorrect edge count", 0, flow.getEdgesTo(step).size());
@@ -93,4 +107,55 @@ public class CompilerTest {
         assertEquals("incorrect edge count", 0, flow.getEdgesTo(group).size());
     }
 
-}
\ No newline at end of file
+    @Test
+    public void cycle() {
+        String xml = "<scenario name=\"cycle\">" +
+                "<step name=\"a\" requires=\"c\"/>" +
+                "<step name=\"b\" requires=\"a\"/>" +
+                "<step name=\"c\" requires=\"b\"/>" +
+                "<step name=\"d\" requires=\"a\"/>" +
+                "</scenario>";
+        Compiler compiler = new Compiler(loadScenario(stream(xml)));
+        try {
+            compiler.compile();
+            fail("cycle should have been detected");
+        } catch (IllegalArgumentException e) {
+            assertEquals("incorrect cycle", "Process flow has a cycle: a -> c -> b -> a", e.getMessage());
+        }
+    }
+
+    @Test
+    @Category(IntegrationTest.class)
+    public void compileThroughput() {
+        compileThroughput(10_000);
+        compileThroughput(100_000);
+    }
+
+    private void compileThroughput(int count) {
+        // Layered graph, with each step requiring two steps of the layer before
+        int width = 100;
+        StringBuilder xml = new StringBuilder("<scenario name=\"compile\">");
+        for (int i = 0; i < count; i++) {
+            xml.append("<step name=\"s").append(i).append('"');
+            if (i >= width) {
+                int base = i - i % width - width;
+                xml.append(" requires=\"s").append(base + i % width)
+                        .append(",s").append(base + (i + 1) % width).append('"');
+            }
+            xml.append("/>");
+        }
+        Scenario scenario = loadScenario(stream(xml.append("</scenario>").toString()));
+
+        long start = System.nanoTime();
+        Compiler compiler = new Compiler(scenario);
+        compiler.compile();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        assertEquals("incorrect step count", count, compiler.processFlow().getVertexes().size());
+        print("compiled %d steps in %.3fs", count, seconds);
+    }
+
+    private static InputStream stream(String xml) {
+        return new ByteArrayInputStream(xml.getBytes(UTF_8));
+    }
+
+}
@@ -15,14 +15,38 @@
  */
 package org.onlab.stc;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import org.apache.commons.configuration.HierarchicalConfiguration;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.onlab.junit.IntegrationTest;
 import org.onlab.util.Tools;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.onlab.stc.CompilerTest.getStream;
+import static org.onlab.stc.Coordinator.Status.*;
 import static org.onlab.stc.Coordinator.print;
 import static org.onlab.stc.Scenario.loadScenario;
 
@@ -37,8 +61,6 @@ public class CoordinatorTest {
     @BeforeClass
     public static void setUpClass() throws IOException {
         CompilerTest.setUpClass();
-
-        StepProcessor.launcher = "true ";
     }
 
     @AfterClass
@@ -56,16 +78,780 @@ public class CoordinatorTest {
         executeTest("scenario.xml");
     }
 
-    private void executeTest(String name) throws IOException, InterruptedException {
-        Scenario scenario = loadScenario(getStream(name));
+    @Test(timeout = 60_000)
+    public void largeFanIn() throws IOException, InterruptedException {
+        int count = 50_000;
+        ImmutableSet.Builder<Step> steps = ImmutableSet.builder();
+        ImmutableSet.Builder<Dependency> dependencies = ImmutableSet.builder();
+        Step barrier = new Step("Final-Check", "true", null, null, null, 0);
+        barrier.setId(count);
+        steps.add(barrier);
+        for (int i = 0; i < count; i++) {
+            Group check = new Group("Check-" + i, null, null, null, null, 0);
+            check.setId(i);
+            steps.add(check);
+            dependencies.add(new Dependency(barrier, check, false));
+        }
+
+        File logDir = new File(System.getProperty("test.dir"), "fan-in");
+        coordinator = newCoordinator("fan-in", logDir, steps.build(), dependencies.build());
+        coordinator.reset();
+        coordinator.start();
+        assertEquals("incorrect exit code", 0, coordinator.waitFor());
+        assertEquals("incorrect result", count + 1, coordinator.completion().join().succeeded());
+        assertEquals("incorrect status", SUCCEEDED, coordinator.getStatus(barrier));
+        assertEquals("incorrect count", count + 1, coordinator.getCount(SUCCEEDED));
+    }
+
+    @Test(timeout = 10_000)
+    public void haltOnError() throws Exception {
+        Step fail = new Step("fail", "false", null, null, null, 0);
+        Step slow = new Step("slow", "sleep 3", null, null, null, 0);
+        Step next = new Step("next", "true", null, null, null, 0);
+        fail.setId(0);
+        slow.setId(1);
+        next.setId(2);
+
+        File logDir = new File(System.getProperty("test.dir"), "halt");
+        coordinator = newCoordinator("halt", logDir, ImmutableSet.of(fail, slow, next),
+                                     ImmutableSet.of(new Dependency(next, slow, false)));
+        coordinator.setHaltOnError(true);
+        coordinator.reset();
+
+        coordinator.start();
+        RunResult result = coordinator.completion().get();
+        assertTrue("should be halted", result.isHalted());
+        assertEquals("incorrect exit code", 1, coordinator.waitFor());
+        assertEquals("incorrect failed count", 1, result.failed());
+        assertEquals("incorrect cancelled count", 1, result.cancelled());
+        assertEquals("incorrect status", CANCELLED, coordinator.getStatus(slow));
+        assertEquals("incorrect status", WAITING, coordinator.getStatus(next));
+    }
+
+    @Test(timeout = 10_000)
+    public void runRange() throws Exception {
+        HierarchicalConfiguration cfg = scenario("range");
+        cfg.addProperty("step(0)[@name]", "build");
+        cfg.addProperty("step(0)[@exec]", "true");
+        cfg.addProperty("group[@name]", "install");
+        cfg.addProperty("group.step(0)[@name]", "push");
+        cfg.addProperty("group.step(0)[@exec]", "true");
+        cfg.addProperty("group.step(0)[@requires]", "build");
+        cfg.addProperty("group.step(1)[@name]", "verify");
+        cfg.addProperty("group.step(1)[@exec]", "true");
+        cfg.addProperty("group.step(1)[@requires]", "push");
+        cfg.addProperty("step(1)[@name]", "test");
+        cfg.addProperty("step(1)[@exec]", "true");
+        cfg.addProperty("step(1)[@requires]", "install");
+        cfg.addProperty("step(2)[@name]", "other");
+        cfg.addProperty("step(2)[@exec]", "true");
+        Compiler compiler = compile(loadScenario(cfg));
+
+        coordinator = newCoordinator(compiler);
+        coordinator.reset();
+        coordinator.start();
+        assertEquals("incorrect exit code", 0, coordinator.waitFor());
+        assertEquals("incorrect count", 6, coordinator.getCount(SUCCEEDED));
+
+        List<String> started = Lists.newCopyOnWriteArrayList();
+        coordinator.addListener(new StepProcessListener() {
+            @Override
+            public void onStart(Step step, String command) {
+                started.add(step.name());
+            }
+        });
+        coordinator.reset(ImmutableList.of("pu.*"), ImmutableList.of("verify", "nothing"));
+        assertEquals("incorrect status", WAITING, coordinator.getStatus(compiler.getStep("push")));
+        assertEquals("incorrect status", WAITING, coordinator.getStatus(compiler.getStep("install")));
+        assertEquals("incorrect status", SUCCEEDED, coordinator.getStatus(compiler.getStep("test")));
+        assertEquals("incorrect status", SUCCEEDED, coordinator.getStatus(compiler.getStep("build")));
+
+        coordinator.start();
+        assertEquals("incorrect exit code", 0, coordinator.waitFor());
+        assertEquals("incorrect steps run", ImmutableSet.of("install", "push", "verify"),
+                     ImmutableSet.copyOf(started));
+        assertEquals("incorrect count", 6, coordinator.getCount(SUCCEEDED));
+
+        // Open-ended range runs everything downstream
+        started.clear();
+        coordinator.reset(ImmutableList.of("verify"), ImmutableList.of(""));
+        coordinator.start();
+        assertEquals("incorrect exit code", 0, coordinator.waitFor());
+        assertEquals("incorrect steps run", ImmutableSet.of("install", "verify", "test"),
+                     ImmutableSet.copyOf(started));
+    }
+
+    @Test(timeout = 10_000)
+    public void resume() throws Exception {
+        File dir = new File(System.getProperty("test.dir"), "resume");
+        File marker = new File(dir, "pushed");
+        marker.delete();
+        HierarchicalConfiguration cfg = scenario("resume");
+        cfg.addProperty("step(0)[@name]", "build");
+        cfg.addProperty("step(0)[@exec]", "true");
+        cfg.addProperty("group[@name]", "install");
+        cfg.addProperty("group.step(0)[@name]", "push");
+        cfg.addProperty("group.step(0)[@exec]", "test -f " + marker.getPath());
+        cfg.addProperty("group.step(0)[@requires]", "build");
+        cfg.addProperty("group.step(1)[@name]", "verify");
+        cfg.addProperty("group.step(1)[@exec]", "true");
+        cfg.addProperty("group.step(1)[@requires]", "push");
+        cfg.addProperty("step(1)[@name]", "test");
+        cfg.addProperty("step(1)[@exec]", "true");
+        cfg.addProperty("step(1)[@requires]", "install");
+        cfg.addProperty("step(2)[@name]", "other");
+        cfg.addProperty("step(2)[@exec]", "true");
+        Compiler compiler = compile(loadScenario(cfg));
+
+        coordinator = newCoordinator(compiler);
+        coordinator.reset();
+        coordinator.start();
+        assertEquals("incorrect exit code", 1, coordinator.waitFor());
+        assertEquals("incorrect status", FAILED, coordinator.getStatus(compiler.getStep("push")));
+        assertEquals("incorrect status", SKIPPED, coordinator.getStatus(compiler.getStep("test")));
+
+        // Resume from the persisted store, as a subsequent invocation would
+        assertTrue("unable to create marker", marker.createNewFile());
+        coordinator = newCoordinator(compiler);
+        List<String> started = Lists.newCopyOnWriteArrayList();
+        coordinator.addListener(new StepProcessListener() {
+            @Override
+            public void onStart(Step step, String command) {
+                started.add(step.name());
+            }
+        });
+        coordinator.resume();
+        assertEquals("incorrect status", SUCCEEDED, coordinator.getStatus(compiler.getStep("build")));
+        assertEquals("incorrect status", WAITING, coordinator.getStatus(compiler.getStep("push")));
+        assertEquals("incorrect status", WAITING, coordinator.getStatus(compiler.getStep("test")));
+
+        coordinator.start();
+        assertEquals("incorrect exit code", 0, coordinator.waitFor());
+        assertEquals("incorrect steps run", ImmutableSet.of("install", "push", "verify", "test"),
+                     ImmutableSet.copyOf(started));
+        assertEquals("incorrect count", 6, coordinator.getCount(SUCCEEDED));
+        assertTrue("prior log should be kept", new File(dir, "build.log").exists());
+
+        // Nothing is left to re-run
+        started.clear();
+        coordinator.rerunFailed();
+        coordinator.start();
+        assertEquals("incorrect exit code", 0, coordinator.waitFor());
+        assertTrue("nothing should run", started.isEmpty());
+    }
+
+    @Test(timeout = 30_000)
+    public void largeRange() throws Exception {
+        // Layered graph, with each step requiring two steps of the layer before
+        int width = 50;
+        int count = 50_000;
+        ImmutableSet.Builder<Step> steps = ImmutableSet.builder();
+        ImmutableSet.Builder<Dependency> dependencies = ImmutableSet.builder();
+        Step[] all = new Step[count];
+        for (int i = 0; i < count; i++) {
+            all[i] = new Step("step-" + i, "true", null, null, null, 0);
+            all[i].setId(i);
+            steps.add(all[i]);
+            if (i >= width) {
+                dependencies.add(new Dependency(all[i], all[i - width], false));
+                dependencies.add(new Dependency(all[i], all[i - width + (i + 1) % width], false));
+            }
+        }
+
+        File logDir = new File(System.getProperty("test.dir"), "large");
+        coordinator = newCoordinator("large", logDir, steps.build(), dependencies.build());
+        coordinator.reset();
+
+        long start = System.nanoTime();
+        coordinator.reset(ImmutableList.of("step-1000"), ImmutableList.of("step-4000[0-9]", "step-49999"));
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        print("range reset of %d steps took %d ms", count, millis);
+    }
+
+    @Test(timeout = 10_000)
+    public void cachedRunNotRecorded() throws Exception {
+        File dir = new File(System.getProperty("test.dir"), "cached-history");
+        dir.mkdirs();
+        Step build = new Step("build", "sh -c \"sleep 0.3; echo done > out.txt\"", null, dir.getPath(), null, 0);
+        build.setId(0);
+        build.setOutputs(ImmutableList.of("out.txt"));
+
+        File logDir = new File(dir, "logs");
+        coordinator = newCoordinator("cached", logDir, ImmutableSet.of(build), ImmutableSet.of());
+        coordinator.setCacheDir(new File(dir, "cache"));
+        List<Step> hits = Lists.newCopyOnWriteArrayList();
+        coordinator.addListener(new StepProcessListener() {
+            @Override
+            public void onCacheHit(Step step) {
+                hits.add(step);
+            }
+        });
+        coordinator.reset();
+        coordinator.start();
+        assertEquals("incorrect exit code", 0, coordinator.waitFor());
+        long duration = new StepHistory(new File(logDir, "cached.history")).duration("build");
+        assertTrue("duration should be recorded", duration >= 300);
+
+        // Restoring the result from the cache must leave the history alone
+        coordinator.reset();
+        coordinator.start();
+        assertEquals("incorrect exit code", 0, coordinator.waitFor());
+        assertEquals("should be a hit", ImmutableList.of(build), hits);
+        StepHistory history = new StepHistory(new File(logDir, "cached.history"));
+        assertEquals("duration should be kept", duration, history.duration("build"));
+        assertEquals("cached run should not count", 1, history.flakiness("build").runs());
+    }
+
+    @Test(timeout = 10_000)
+    public void retries() throws Exception {
+        File dir = new File(System.getProperty("test.dir"), "retry");
+        dir.mkdirs();
+        new File(dir, "flaky.count").delete();
+        new File(dir, "logs/retry.history").delete();
+        Step flaky = new Step("flaky", "sh -c \"echo >> flaky.count; test $(wc -l < flaky.count) -ge 3\"",
+                              null, dir.getPath(), null, 0);
+        Step broken = new Step("broken", "false", null, null, null, 0);
+        Step next = new Step("next", "true", null, null, null, 0);
+        flaky.setId(0);
+        broken.setId(1);
+        next.setId(2);
+        flaky.setRetries(3);
+        flaky.setRetryDelayMillis(50);
+        broken.setRetries(1);
+        broken.setRetryDelayMillis(50);
+
+        File logDir = new File(dir, "logs");
+        coordinator = newCoordinator("retry", logDir, ImmutableSet.of(flaky, broken, next),
+                                     ImmutableSet.of(new Dependency(next, flaky, false)));
+        List<Integer> attempts = Lists.newCopyOnWriteArrayList();
+        coordinator.addListener(new StepProcessListener() {
+            @Override
+            public void onRetry(Step step, int attempt, long delayMillis) {
+                if (step.equals(flaky)) {
+                    attempts.add(attempt);
+                    assertEquals("incorrect backoff", 50L << (attempt - 1), delayMillis);
+                }
+            }
+        });
+        coordinator.reset();
+        coordinator.start();
+        assertEquals("incorrect exit code", 1, coordinator.waitFor());
+
+        assertEquals("incorrect attempts", ImmutableList.of(1, 2), attempts);
+        assertEquals("incorrect status", SUCCEEDED, coordinator.getStatus(flaky));
+        assertEquals("incorrect status", FAILED, coordinator.getStatus(broken));
+        assertEquals("incorrect status", SUCCEEDED, coordinator.getStatus(next));
+        assertEquals("each attempt should be recorded", 3, coordinator.getRecords().stream()
+                .filter(e -> e.name().equals("flaky") && e.status() == IN_PROGRESS).count());
+        assertEquals("each retry should be recorded", 1, coordinator.getRecords().stream()
+                .filter(e -> e.name().equals("broken") && e.status() == RETRYING).count());
+
+        StepHistory history = new StepHistory(new File(logDir, "retry.history"));
+        assertEquals("incorrect runs", 1, history.flakiness("flaky").runs());
+        assertEquals("incorrect flaky runs", 1, history.flakiness("flaky").flakyRuns());
+        assertEquals("incorrect failed attempts", 2, history.flakiness("flaky").failedAttempts());
+        assertEquals("incorrect flaky runs", 0, history.flakiness("broken").flakyRuns());
+        assertEquals("incorrect failed attempts", 1, history.flakiness("broken").failedAttempts());
+        assertTrue("incorrect stats", coordinator.statistics().stream()
+                .anyMatch(line -> line.startsWith("retries: 3 this run; most time wasted by")));
+    }
+
+    @Test(timeout = 60_000)
+    public void cancel() throws Exception {
+        for (Coordinator.Launcher launcher : Coordinator.Launcher.values()) {
+            int count = 64;
+            ImmutableSet.Builder<Step> steps = ImmutableSet.builder();
+            for (int i = 0; i < count; i++) {
+                Step step = new Step("sleep-" + i, "sleep 600", null, null, null, 0);
+                step.setId(i);
+                steps.add(step);
+            }
+
+            File logDir = new File(System.getProperty("test.dir"), "cancel");
+            coordinator = newCoordinator("cancel", logDir, steps.build(), ImmutableSet.of());
+            coordinator.setConcurrency(count);
+            coordinator.setLauncher(launcher);
+            CountDownLatch started = new CountDownLatch(count);
+            coordinator.addListener(new StepProcessListener() {
+                @Override
+                public void onStart(Step step, String command) {
+                    started.countDown();
+                }
+            });
+            coordinator.reset();
+            coordinator.start();
+            assertTrue("steps did not start", started.await(20, TimeUnit.SECONDS));
+
+            long start = System.currentTimeMillis();
+            coordinator.cancel();
+            assertEquals("incorrect exit code", 1, coordinator.waitFor());
+            long latency = System.currentTimeMillis() - start;
+            print("%s abort latency with %d running steps: %d ms", launcher, count, latency);
+            assertTrue("abort took too long", latency < Coordinator.CANCEL_GRACE_MILLIS + 2_000);
+
+            RunResult result = coordinator.completion().get();
+            assertTrue("should be halted", result.isHalted());
+            assertEquals("incorrect cancelled count", count, result.cancelled());
+            assertEquals("incorrect cancelled count", count, coordinator.getCount(CANCELLED));
+            assertEquals("incorrect journal", count,
+                         coordinator.getRecords().stream().filter(e -> e.status() == CANCELLED).count());
+            assertFalse("step processes should be gone", ProcessHandle.current().descendants()
+                    .anyMatch(h -> h.info().commandLine().orElse("").contains("sleep 600")));
+        }
+    }
+
+    @Test
+    public void criticalPath() throws Exception {
+        Step a = new Step("a", "true", null, null, null, 0);
+        Step b = new Step("b", "true", null, null, null, 0);
+        Step c = new Step("c", "true", null, null, null, 0);
+        Step d = new Step("d", "true", null, null, null, 0);
+        a.setId(0);
+        b.setId(1);
+        c.setId(2);
+        d.setId(3);
+
+        File logDir = new File(System.getProperty("test.dir"), "cp");
+        StepHistory history = new StepHistory(new File(logDir, "cp.history"));
+        history.recordDuration("a", 1_000);
+        history.recordDuration("b", 1_000);
+        history.recordDuration("c", 1_000);
+        history.recordDuration("d", 500);
+        history.save();
+
+        coordinator = newCoordinator("cp", logDir, ImmutableSet.of(a, b, c, d),
+                                     ImmutableSet.of(new Dependency(b, a, false), new Dependency(c, b, false)));
+        coordinator.setScheduling(Coordinator.Scheduling.CRITICAL_PATH);
+        coordinator.reset();
+        coordinator.start();
+        assertEquals("incorrect exit code", 0, coordinator.waitFor());
+        assertTrue("incorrect prediction",
+                   coordinator.statistics().stream()
+                           .anyMatch(line -> line.contains("predicted makespan 3.0s")));
+        assertTrue("history not updated",
+                   new StepHistory(new File(logDir, "cp.history")).duration("d") < 500);
+    }
+
+    @Test(timeout = 30_000)
+    public void manyIdleSteps() throws Exception {
+        File dir = new File(System.getProperty("test.dir"), "idle");
+        dir.mkdirs();
+        File go = new File(dir, "go");
+        go.delete();
+
+        // Steps idle until all of them have started, so they must all run at once
+        int count = 256;
+        ImmutableSet.Builder<Step> steps = ImmutableSet.builder();
+        for (int i = 0; i < count; i++) {
+            Step step = new Step("idle-" + i, "sh -c \"until test -f go; do sleep 0.2; done\"",
+                                 null, dir.getPath(), null, 0);
+            step.setId(i);
+            steps.add(step);
+        }
+
+        coordinator = newCoordinator("idle", new File(dir, "logs"), steps.build(), ImmutableSet.of());
+        coordinator.setConcurrency(count);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(count);
+        coordinator.addListener(new StepProcessListener() {
+            @Override
+            public void onStart(Step step, String command) {
+                peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+                started.countDown();
+            }
+
+            @Override
+            public void onCompletion(Step step, Coordinator.Status status) {
+                running.decrementAndGet();
+            }
+        });
+        coordinator.reset();
+        coordinator.start();
+        started.await();
+        assertTrue("unable to create go file", go.createNewFile());
+        assertEquals("incorrect exit code", 0, coordinator.waitFor());
+        assertEquals("incorrect count", count, coordinator.getCount(SUCCEEDED));
+        assertEquals("steps did not run concurrently", count, peak.get());
+    }
+
+    @Test(timeout = 10_000)
+    public void delayedStep() throws Exception {
+        HierarchicalConfiguration cfg = scenario("delay");
+        cfg.addProperty("step[@name]", "late");
+        cfg.addProperty("step[@exec]", "true");
+        cfg.addProperty("step[@delay]", "0.3");
+        Compiler compiler = compile(loadScenario(cfg));
+        Step late = compiler.getStep("late");
+        assertEquals("incorrect delay", 300, late.delayMillis());
+
+        List<Coordinator.Status> observed = Lists.newCopyOnWriteArrayList();
+        coordinator = newCoordinator(compiler);
+        coordinator.addListener(new StepProcessListener() {
+            @Override
+            public void onDelay(Step step, long millis) {
+                observed.add(coordinator.getStatus(step));
+            }
+
+            @Override
+            public void onStart(Step step, String command) {
+                observed.add(coordinator.getStatus(step));
+            }
+        });
+        coordinator.reset();
+
+        long start = System.currentTimeMillis();
+        coordinator.start();
+        assertEquals("incorrect exit code", 0, coordinator.waitFor());
+        assertTrue("delay not honoured", System.currentTimeMillis() - start >= 300);
+        assertEquals("incorrect statuses", ImmutableList.of(DELAYED, IN_PROGRESS), observed);
+        assertEquals("incorrect status", SUCCEEDED, coordinator.getStatus(late));
+    }
+
+    @Test
+    public void exportedProperties() throws Exception {
+        Step export = new Step("export", "echo @stc foo=bar", null, null, null, 0);
+        Step use = new Step("use", "test ${foo} = bar", null, null, null, 0);
+        export.setId(0);
+        use.setId(1);
+
+        File logDir = new File(System.getProperty("test.dir"), "export");
+        coordinator = newCoordinator("export", logDir, ImmutableSet.of(export, use),
+                                     ImmutableSet.of(new Dependency(use, export, false)));
+        coordinator.reset();
+        coordinator.start();
+        assertEquals("incorrect exit code", 0, coordinator.waitFor());
+        assertEquals("incorrect status", SUCCEEDED, coordinator.getStatus(use));
+    }
+
+    @Test
+    public void failedStepLogTail() throws Exception {
+        Step fail = new Step("chatty", "sh -c \"seq 1 100000; false\"", null, null, null, 0);
+        Step pass = new Step("quiet", "echo ok", null, null, null, 0);
+        fail.setId(0);
+        pass.setId(1);
+
+        File logDir = new File(System.getProperty("test.dir"), "tail");
+        coordinator = newCoordinator("tail", logDir, ImmutableSet.of(fail, pass), ImmutableSet.of());
+        coordinator.setCompressLogs(true);
+        coordinator.reset();
+        coordinator.start();
+        assertEquals("incorrect exit code", 1, coordinator.waitFor());
+
+        LogTail tail = coordinator.getLogTail(fail);
+        assertTrue("tail should be truncated", tail.isTruncated());
+        assertEquals("incorrect log file", new File(logDir, "chatty.log.gz"), tail.file());
+        List<String> lines = tail.lines();
+        assertEquals("incorrect last line", "100000", lines.get(lines.size() - 1));
+        assertEquals("incorrect first line", String.valueOf(100_001 - lines.size()), lines.get(0));
+        assertNull("tail should not be retained", coordinator.getLogTail(pass));
+    }
+
+    @Test(timeout = 10_000)
+    public void launcherPool() throws Exception {
+        File logDir = new File(System.getProperty("test.dir"), "pool");
+        File env = new File(System.getProperty("test.dir"), "pool.env");
+        Files.asCharSink(env, UTF_8).write("export FOO=bar\n");
+
+        Step printenv = new Step("printenv", "printenv FOO", env.getPath(), null, null, 0);
+        Step pwd = new Step("pwd", "pwd", null, "/", null, 0);
+        Step negated = new Step("negated", "false", "!", null, null, 0);
+        Step export = new Step("export", "echo @stc foo=bar", null, null, null, 0);
+        Step use = new Step("use", "test ${foo} = bar", null, null, null, 0);
+        Step missing = new Step("missing", "no-such-command", null, null, null, 0);
+        ImmutableList<Step> steps = ImmutableList.of(printenv, pwd, negated, export, use, missing);
+        for (int i = 0; i < steps.size(); i++) {
+            steps.get(i).setId(i);
+        }
+
+        coordinator = newCoordinator("pool", logDir, ImmutableSet.copyOf(steps),
+                                     ImmutableSet.of(new Dependency(use, export, false)));
+        coordinator.setLauncher(Coordinator.Launcher.POOL);
+        coordinator.reset();
+        coordinator.start();
+        assertEquals("incorrect exit code", 1, coordinator.waitFor());
+        steps.subList(0, 5).forEach(step -> assertEquals("incorrect status of " + step.name(),
+                                                         SUCCEEDED, coordinator.getStatus(step)));
+        assertEquals("incorrect status", FAILED, coordinator.getStatus(missing));
+        assertEquals("incorrect output", "bar\n", Files.asCharSource(new File(logDir, "printenv.log"), UTF_8).read());
+        assertEquals("incorrect output", "/\n", Files.asCharSource(new File(logDir, "pwd.log"), UTF_8).read());
+    }
+
+    @Test
+    @Category(IntegrationTest.class)
+    public void launchThroughput() throws Exception {
+        launchThroughput("/bin/true", Coordinator.Launcher.DIRECT);
+        launchThroughput("/bin/true", Coordinator.Launcher.POOL);
+        launchThroughput("stc:echo", Coordinator.Launcher.DIRECT);
+    }
+
+    private void launchThroughput(String command, Coordinator.Launcher launcher) throws Exception {
+        int count = 2_000;
+        Set<Step> steps = Sets.newHashSet();
+        for (int i = 0; i < count; i++) {
+            Step step = new Step("launch-" + i, command, null, null, null, 0);
+            step.setId(i);
+            steps.add(step);
+        }
+        File logDir = new File(System.getProperty("test.dir"), "launch");
+        coordinator = newCoordinator("launch", logDir, steps, ImmutableSet.of());
+        coordinator.setLauncher(launcher);
+        coordinator.reset();
+
+        long start = System.nanoTime();
+        coordinator.start();
+        assertEquals("incorrect exit code", 0, coordinator.waitFor());
+        double seconds = (System.nanoTime() - start) / 1e9;
+        print("command=%s launcher=%s: %d steps in %.3fs; %.0f steps/s",
+              command, launcher, count, seconds, count / seconds);
+    }
+
+    @Test
+    @Category(IntegrationTest.class)
+    public void outputThroughput() throws Exception {
+        int count = 2_000_000;
+        for (boolean wanted : new boolean[]{false, true}) {
+            Step step = new Step("chatty", "seq 1 " + count, null, null, null, 0);
+            step.setId(0);
+            File logDir = new File(System.getProperty("test.dir"), "chatty");
+            coordinator = newCoordinator("chatty", logDir, ImmutableSet.of(step), ImmutableSet.of());
+            coordinator.addListener(new StepProcessListener() {
+                @Override
+                public boolean wantsOutput() {
+                    return wanted;
+                }
+            });
+            coordinator.reset();
+
+            long start = System.nanoTime();
+            coordinator.start();
+            assertEquals("incorrect exit code", 0, coordinator.waitFor());
+            double seconds = (System.nanoTime() - start) / 1e9;
+            print("output wanted=%s: %d lines in %.3fs; %.0f lines/s",
+                  wanted, count, seconds, count / seconds);
+        }
+    }
+
+    @Test
+    public void environment() throws Exception {
+        File testDir = new File(System.getProperty("test.dir"));
+        Files.asCharSink(new File(testDir, "plain.env"), UTF_8)
+                .write("# plain\nexport CELL=tost\nNODES=\"$CELL 10.0.0.1\"\nexport NODES\n");
+        Files.asCharSink(new File(testDir, "shell.env"), UTF_8)
+                .write("export CELL=$(echo tost)\nexport NODES=\"${CELL:-none} 10.0.0.1\"\n");
+
+        for (Coordinator.Launcher launcher : Coordinator.Launcher.values()) {
+            Compiler compiler = compile(loadScenario(getStream("env-scenario.xml")));
+            coordinator = newCoordinator(compiler);
+            coordinator.setLauncher(launcher);
+            coordinator.reset();
+            coordinator.start();
+            assertEquals("incorrect exit code with " + launcher, 0, coordinator.waitFor());
+
+            File logDir = compiler.logDir();
+            assertEquals("incorrect output", "hello\nworld\n",
+                         Files.asCharSource(new File(logDir, "inherited.log"), UTF_8).read());
+            assertEquals("incorrect output", "hello\nthere\n",
+                         Files.asCharSource(new File(logDir, "overridden.log"), UTF_8).read());
+            assertEquals("incorrect output", "/\n",
+                         Files.asCharSource(new File(logDir, "cwd.log"), UTF_8).read());
+            assertEquals("incorrect output", "tost\ntost 10.0.0.1\n",
+                         Files.asCharSource(new File(logDir, "plain-file.log"), UTF_8).read());
+            assertEquals("incorrect output", "tost\ntost 10.0.0.1\n",
+                         Files.asCharSource(new File(logDir, "shell-file.log"), UTF_8).read());
+
+            // Launcher workers evaluate environment files on their own
+            String stats = launcher == Coordinator.Launcher.DIRECT ?
+                    "env files: 1 parsed; 1 sourced by shell" : "env files: 0 parsed; 0 sourced by shell";
+            assertTrue("incorrect env file stats", coordinator.statistics().contains(stats));
+        }
+    }
+
+    @Test(timeout = 20_000)
+    public void timeouts() throws Exception {
+        for (Coordinator.Launcher launcher : Coordinator.Launcher.values()) {
+            Compiler compiler = compile(loadScenario(getStream("timeout-scenario.xml")));
+            coordinator = newCoordinator(compiler);
+            coordinator.setLauncher(launcher);
+            List<String> timedOut = Lists.newCopyOnWriteArrayList();
+            coordinator.addListener(new StepProcessListener() {
+                @Override
+                public void onTimeout(Step step) {
+                    timedOut.add(step.name());
+                }
+            });
+            coordinator.reset();
+
+            coordinator.start();
+            assertEquals("incorrect exit code", 1, coordinator.waitFor());
+
+            assertEquals("incorrect status", FAILED, coordinator.getStatus(compiler.getStep("hung")));
+            assertEquals("incorrect status", SUCCEEDED, coordinator.getStatus(compiler.getStep("quick")));
+            assertEquals("incorrect status", FAILED, coordinator.getStatus(compiler.getStep("deadline")));
+            assertEquals("incorrect status", FAILED, coordinator.getStatus(compiler.getStep("slow")));
+            assertEquals("incorrect status", SKIPPED, coordinator.getStatus(compiler.getStep("after")));
+            assertEquals("incorrect status", FAILED, coordinator.getStatus(compiler.getStep("nested-slow")));
+            assertEquals("incorrect timeouts",
+                         ImmutableSet.of("hung", "deadline", "slow", "nested-slow"), ImmutableSet.copyOf(timedOut));
+            assertTrue("reason should be recorded", coordinator.getRecords().stream()
+                    .anyMatch(e -> e.name().equals("hung") && e.status() == FAILED &&
+                            Coordinator.TIMEOUT.equals(e.command())));
+
+            // The background child of the hung step must be gone too
+            File hungLog = new File(compiler.logDir(), "hung.log");
+            long pid = Long.parseLong(Files.asCharSource(hungLog, UTF_8).readFirstLine());
+            long deadline = System.currentTimeMillis() + 2_000;
+            while (ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false) &&
+                    System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertFalse("descendant should be killed", ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false));
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void deadlineNotCarriedOver() throws Exception {
+        HierarchicalConfiguration cfg = scenario("rerun-deadline");
+        cfg.addProperty("group[@name]", "window");
+        cfg.addProperty("group[@timeout]", "1");
+        cfg.addProperty("group.step[@name]", "nap");
+        cfg.addProperty("group.step[@exec]", "sleep 0.7");
+        Compiler compiler = compile(loadScenario(cfg));
+
+        // The deadline of the first run would elapse midway through the second one
+        coordinator = newCoordinator(compiler);
+        for (int run = 0; run < 2; run++) {
+            coordinator.reset();
+            coordinator.start();
+            assertEquals("incorrect exit code", 0, coordinator.waitFor());
+            assertEquals("incorrect status", SUCCEEDED, coordinator.getStatus(compiler.getStep("window")));
+        }
+    }
+
+    @Test
+    public void resourcePools() throws IOException, InterruptedException {
+        Compiler compiler = compile(loadScenario(getStream("pool-scenario.xml")));
+        Map<String, Integer> pools = compiler.pools();
+        assertEquals("incorrect pool count", 4, pools.size());
+        assertEquals("incorrect pool size", 3, (int) pools.get("db"));
+        assertEquals("incorrect uses", ImmutableMap.of("cluster", 1), compiler.getStep("one").uses());
+        assertEquals("incorrect uses", ImmutableMap.of("db", 2), compiler.getStep("four").uses());
+        assertEquals("incorrect uses", 2, compiler.getStep("seven-1").uses().size());
+        assertEquals("incorrect uses", 1, compiler.getStep("eight").uses().size());
+
+        Map<String, AtomicInteger> inUse = Maps.newConcurrentMap();
+        Map<String, AtomicInteger> peaks = Maps.newConcurrentMap();
+        pools.keySet().forEach(pool -> {
+            inUse.put(pool, new AtomicInteger());
+            peaks.put(pool, new AtomicInteger());
+        });
+        coordinator = newCoordinator(compiler);
+        coordinator.setResourcePools(compiler.pools());
+        coordinator.addListener(new StepProcessListener() {
+            @Override
+            public void onStart(Step step, String command) {
+                if (step instanceof Group) {
+                    return;
+                }
+                step.uses().forEach((pool, count) -> peaks.get(pool)
+                        .accumulateAndGet(inUse.get(pool).addAndGet(count), Math::max));
+            }
+
+            @Override
+            public void onCompletion(Step step, Coordinator.Status status) {
+                if (step instanceof Group) {
+                    return;
+                }
+                step.uses().forEach((pool, count) -> inUse.get(pool).addAndGet(-count));
+            }
+        });
+        coordinator.reset();
+        coordinator.start();
+        assertEquals("incorrect exit code", 0, coordinator.waitFor());
+        assertEquals("incorrect count", 13, coordinator.getCount(SUCCEEDED));
+        assertEquals("pool oversubscribed", 1, peaks.get("cluster").get());
+        assertEquals("pool oversubscribed", 2, peaks.get("db").get());
+        pools.forEach((pool, size) -> assertTrue("window oversubscribed", peaks.get(pool).get() <= size));
+        String inner = Iterables.getOnlyElement(Sets.difference(compiler.getStep("seven-1").uses().keySet(),
+                                                                compiler.getStep("eight").uses().keySet()));
+        assertEquals("window not serialized", 1, peaks.get(inner).get());
+        long waits = compiler.processFlow().getVertexes().stream()
+                .filter(step -> !step.uses().isEmpty())
+                .mapToLong(coordinator::getResourceWait).sum();
+        assertTrue("resource wait not recorded", waits > 0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void unknownPool() {
+        HierarchicalConfiguration cfg = new HierarchicalConfiguration();
+        cfg.addProperty("[@name]", "pool");
+        cfg.addProperty("step[@name]", "one");
+        cfg.addProperty("step[@uses]", "nope");
+        new Compiler(loadScenario(cfg)).compile();
+    }
+
+    /**
+     * Returns the configuration of an otherwise empty scenario with the given
+     * name, which logs into a like-named directory under the test directory.
+     *
+     * @param name scenario name
+     * @return scenario configuration
+     */
+    private static HierarchicalConfiguration scenario(String name) {
+        HierarchicalConfiguration cfg = new HierarchicalConfiguration();
+        cfg.addProperty("[@name]", name);
+        cfg.addProperty("[@logDir]", new File(System.getProperty("test.dir"), name).getPath());
+        return cfg;
+    }
+
+    /**
+     * Compiles the specified scenario.
+     *
+     * @param scenario scenario to compile
+     * @return compiler holding the compiled process flow
+     */
+    private static Compiler compile(Scenario scenario) {
         Compiler compiler = new Compiler(scenario);
         compiler.compile();
+        return compiler;
+    }
+
+    /**
+     * Creates a coordinator for the process flow of the compiled scenario.
+     *
+     * @param compiler compiler holding the compiled scenario
+     * @return new coordinator
+     */
+    private static Coordinator newCoordinator(Compiler compiler) {
+        return new Coordinator(compiler.scenario(), compiler.processFlow(), compiler.logDir());
+    }
+
+    /**
+     * Creates a coordinator for an ad-hoc process flow of the given steps
+     * under an otherwise empty scenario.
+     *
+     * @param name         scenario name
+     * @param logDir       log directory
+     * @param steps        steps and groups to run
+     * @param dependencies dependencies among them
+     * @return new coordinator
+     */
+    private static Coordinator newCoordinator(String name, File logDir,
+                                              Set<Step> steps, Set<Dependency> dependencies) {
+        HierarchicalConfiguration cfg = new HierarchicalConfiguration();
+        cfg.addProperty("[@name]", name);
+        return new Coordinator(loadScenario(cfg), new ProcessFlow(steps, dependencies), logDir);
+    }
+
+    private void executeTest(String name) throws IOException, InterruptedException {
+        Compiler compiler = compile(loadScenario(getStream(name)));
         Tools.removeDirectory(compiler.logDir());
-        coordinator = new Coordinator(scenario, compiler.processFlow(), compiler.logDir());
+        coordinator = newCoordinator(compiler);
         coordinator.addListener(listener);
         coordinator.reset();
         coordinator.start();
         coordinator.waitFor();
+        assertEquals("incorrect count", 0, coordinator.getCount(WAITING) + coordinator.getCount(IN_PROGRESS));
         coordinator.removeListener(listener);
     }
 
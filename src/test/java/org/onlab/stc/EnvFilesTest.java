@@ -0,0 +1,119 @@
+/*
+ * Copyright 2015-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onlab.stc;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.onlab.stc.EnvFiles.parse;
+
+/**
+ * Test of the environment file cache.
+ */
+public class EnvFilesTest {
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    @Test
+    public void plain() {
+        Map<String, String> vars = parse(ImmutableList.of(
+                "# comment", "",
+                "export OC1=10.0.0.1",
+                "OC2='10.0.0.2'",
+                "export OCI=\"$OC1\"",
+                "ONOS_APPS=drivers,openflow",
+                "export ONOS_APPS OC2",
+                "LOCAL=${OC1}:8181"));
+        assertEquals("incorrect variables",
+                     ImmutableMap.of("OC1", "10.0.0.1", "OC2", "10.0.0.2", "OCI", "10.0.0.1",
+                                     "ONOS_APPS", "drivers,openflow"), vars);
+    }
+
+    @Test
+    public void needsShell() {
+        assertNull("should need shell", parse(ImmutableList.of("export FOO=$(hostname)")));
+        assertNull("should need shell", parse(ImmutableList.of("export FOO=${BAR:-baz}")));
+        assertNull("should need shell", parse(ImmutableList.of("export FOO=bar baz")));
+        assertNull("should need shell", parse(ImmutableList.of("export FOO=\"bar")));
+        assertNull("should need shell", parse(ImmutableList.of("source other.env")));
+        assertNull("should need shell", parse(ImmutableList.of("export FOO=~/onos")));
+    }
+
+    @Test
+    public void cached() throws IOException {
+        File plain = testFolder.newFile("plain.env");
+        File shell = testFolder.newFile("shell.env");
+        Files.asCharSink(plain, UTF_8).write("export FOO=bar\n");
+        Files.asCharSink(shell, UTF_8).write("[ -n \"$HOME\" ] && export FOO=baz\n");
+
+        EnvFiles envFiles = new EnvFiles();
+        Map<String, String> vars = envFiles.variables(plain.getPath());
+        assertEquals("incorrect variables", ImmutableMap.of("FOO", "bar"), vars);
+        assertSame("should be cached", vars, envFiles.variables(plain.getPath()));
+        assertEquals("incorrect variables", ImmutableMap.of("FOO", "baz"),
+                     envFiles.variables(shell.getPath()));
+        envFiles.variables(shell.getPath());
+        assertEquals("incorrect stats", "env files: 1 parsed; 1 sourced by shell", envFiles.stats());
+    }
+
+    @Test(timeout = 10_000)
+    public void concurrent() throws Exception {
+        File shell = testFolder.newFile("slow.env");
+        Files.asCharSink(shell, UTF_8).write("sleep 0.2; export FOO=baz\n");
+        Step step = new Step("step", "true", shell.getPath(), null, null, 0);
+
+        EnvFiles envFiles = new EnvFiles();
+        assertNull("should need evaluation", envFiles.evaluated(step));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Map<String, String>>> results = Lists.newArrayList();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> envFiles.variables(shell.getPath())));
+            }
+            for (Future<Map<String, String>> result : results) {
+                assertEquals("incorrect variables", ImmutableMap.of("FOO", "baz"), result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals("should be sourced once", "env files: 0 parsed; 1 sourced by shell", envFiles.stats());
+        assertEquals("should be evaluated", ImmutableMap.of("FOO", "baz"), envFiles.evaluated(step));
+    }
+
+    @Test(expected = IOException.class)
+    public void missing() throws IOException {
+        new EnvFiles().variables(new File(testFolder.getRoot(), "missing.env").getPath());
+    }
+
+}
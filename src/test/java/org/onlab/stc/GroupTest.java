@@ -34,7 +34,7 @@ public class GroupTest extends StepTest {
         assertEquals("incorrect env", ENV, group.env());
         assertEquals("incorrect cwd", CWD, group.cwd());
         assertSame("incorrect group", parent, group.group());
-        assertEquals("incorrect delay", 1, group.delay());
+        assertEquals("incorrect delay", 1_000, group.delayMillis());
 
         Step step = new Step("step", null, null, null, group, 0);
         group.addChild(step);
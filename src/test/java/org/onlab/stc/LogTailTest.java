@@ -0,0 +1,69 @@
+/*
+ * Copyright 2015-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onlab.stc;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.io.File;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test of the log tail.
+ */
+public class LogTailTest {
+
+    private final LogTail tail = new LogTail(new File("foo.log"), 16);
+
+    private void append(String text) {
+        byte[] bytes = text.getBytes(UTF_8);
+        tail.append(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void empty() {
+        assertFalse("should not be truncated", tail.isTruncated());
+        assertEquals("incorrect lines", ImmutableList.of(), tail.lines());
+    }
+
+    @Test
+    public void fits() {
+        append("one\r\ntwo\n");
+        append("three");
+        assertFalse("should not be truncated", tail.isTruncated());
+        assertEquals("incorrect lines", ImmutableList.of("one", "two", "three"), tail.lines());
+    }
+
+    @Test
+    public void wrapped() {
+        append("one\ntwo\nthree\n");
+        append("four\nfive\n");
+        assertTrue("should be truncated", tail.isTruncated());
+        assertEquals("incorrect lines", ImmutableList.of("four", "five"), tail.lines());
+    }
+
+    @Test
+    public void oversized() {
+        append("zero\none\ntwo\nthree\nfour\nfive\nsix\n");
+        assertTrue("should be truncated", tail.isTruncated());
+        assertEquals("incorrect lines", ImmutableList.of("four", "five", "six"), tail.lines());
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onlab.stc;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.BitSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.onlab.stc.Coordinator.Status.*;
+
+/**
+ * Test of the scenario store.
+ */
+public class ScenarioStoreTest {
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private File dir;
+    private ProcessFlow flow;
+    private Step one, two, three;
+
+    @Before
+    public void setUp() {
+        dir = testFolder.getRoot();
+        one = step("one", 0);
+        two = step("two", 1);
+        three = step("three", 2);
+        flow = new ProcessFlow(ImmutableSet.of(one, two, three),
+                               ImmutableSet.of(new Dependency(two, one, false)));
+    }
+
+    static Step step(String name, int id) {
+        Step step = new Step(name, "cmd", null, null, null, 0);
+        step.setId(id);
+        return step;
+    }
+
+    @Test
+    public void basics() {
+        ScenarioStore store = new ScenarioStore(flow, dir, "foo");
+        store.reset();
+        assertEquals("incorrect status", WAITING, store.getStatus(one));
+        assertEquals("incorrect count", 3, store.getCount(WAITING));
+        assertFalse("should not be complete", store.isComplete());
+
+        store.markStarted(one);
+        store.markComplete(one, SUCCEEDED);
+        store.markStarted(two);
+        store.markComplete(two, FAILED);
+        assertEquals("incorrect status", FAILED, store.getStatus(two));
+        assertTrue("should have failures", store.hasFailures());
+        assertFalse("should not be complete", store.isComplete());
+
+        store.markComplete(three, SKIPPED);
+        assertTrue("should be complete", store.isComplete());
+        assertEquals("incorrect count", 1, store.getCount(SUCCEEDED));
+        assertEquals("incorrect count", 1, store.getCount(FAILED));
+        assertEquals("incorrect count", 1, store.getCount(SKIPPED));
+        assertEquals("incorrect count", 0, store.getCount(WAITING));
+        assertEquals("incorrect count", 0, store.getCount(IN_PROGRESS));
+        store.flush();
+
+        ScenarioStore loaded = new ScenarioStore(flow, dir, "foo");
+        assertEquals("incorrect event count", 5, loaded.getEvents().size());
+        assertEquals("incorrect status", SUCCEEDED, loaded.getStatus(one));
+        assertEquals("incorrect status", SKIPPED, loaded.getStatus(three));
+        assertTrue("should be complete", loaded.isComplete());
+    }
+
+    @Test
+    public void partialReset() throws Exception {
+        ScenarioStore store = new ScenarioStore(flow, dir, "foo");
+        store.reset();
+        store.markStarted(one);
+        store.markComplete(one, SUCCEEDED);
+        Thread.sleep(20);
+        store.markStarted(two);
+        store.markComplete(two, FAILED);
+        long start = store.startTime();
+        assertTrue("incorrect end time", store.endTime() > start);
+        assertTrue("unable to create log", new File(dir, "one.log").createNewFile());
+        assertTrue("unable to create log", new File(dir, "two.log.gz").createNewFile());
+
+        BitSet range = new BitSet();
+        range.set(two.id());
+        store.reset(range);
+        assertEquals("incorrect status", SUCCEEDED, store.getStatus(one));
+        assertEquals("incorrect status", WAITING, store.getStatus(two));
+        assertEquals("incorrect event count", 2, store.getEvents().size());
+        assertEquals("incorrect start time", start, store.startTime());
+        assertEquals("incorrect end time", store.getEvents().get(1).time(), store.endTime());
+        assertTrue("log should be kept", new File(dir, "one.log").exists());
+        assertFalse("log should be deleted", new File(dir, "two.log.gz").exists());
+
+        range.set(one.id());
+        store.reset(range);
+        assertEquals("incorrect start time", Long.MAX_VALUE, store.startTime());
+        assertFalse("log should be deleted", new File(dir, "one.log").exists());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownStep() {
+        new ScenarioStore(flow, dir, "foo").getStatus(step("four", 1));
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onlab.stc;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.onlab.stc.Coordinator.Capture;
+import org.onlab.stc.Coordinator.Status;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.onlab.stc.Coordinator.Status.SUCCEEDED;
+
+/**
+ * Test of the step result cache.
+ */
+public class StepCacheTest {
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private File work;
+    private StepCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        work = testFolder.newFolder("work");
+        cache = new StepCache(testFolder.newFolder("cache"));
+    }
+
+    private Step step(String command) {
+        Step step = new Step("gen", command, null, work.getPath(), null, 0);
+        step.setInputs(ImmutableList.of("in.txt"));
+        step.setOutputs(ImmutableList.of("out.txt"));
+        return step;
+    }
+
+    @Test
+    public void keys() throws IOException {
+        Step step = step("cp in.txt out.txt");
+        Files.asCharSink(new File(work, "in.txt"), UTF_8).write("one");
+        String key = cache.key(step, step.command(), ImmutableMap.of());
+        assertEquals("key should be stable", key, cache.key(step, step.command(), ImmutableMap.of()));
+        assertNotEquals("key should reflect command", key,
+                        cache.key(step, "cp -p in.txt out.txt", ImmutableMap.of()));
+        assertNotEquals("key should reflect environment", key,
+                        cache.key(step, step.command(), ImmutableMap.of("FOO", "bar")));
+        Files.asCharSink(new File(work, "in.txt"), UTF_8).write("two");
+        assertNotEquals("key should reflect inputs", key, cache.key(step, step.command(), ImmutableMap.of()));
+    }
+
+    @Test
+    public void changedOutputsMiss() throws IOException {
+        Files.asCharSink(new File(work, "in.txt"), UTF_8).write("one");
+        Step step = step("sh -c \"echo a > a.txt; echo b > b.txt\"");
+        step.setOutputs(ImmutableList.of("a.txt", "b.txt"));
+        StepLogs logs = new StepLogs(testFolder.newFolder("logs"));
+        new StepProcessor(step, logs, new StepProcessListener() { }, step.command(), Capture.PIPE, false,
+                          new EnvFiles(), null, cache).run();
+        assertEquals("result should be cached", Integer.valueOf(0),
+                     cache.lookup(cache.key(step, step.command(), ImmutableMap.of())));
+
+        // Swapped outputs must not be restored from the entry filed by position
+        step.setOutputs(ImmutableList.of("b.txt", "a.txt"));
+        assertNull("swapped outputs should miss",
+                   cache.lookup(cache.key(step, step.command(), ImmutableMap.of())));
+        step.setOutputs(ImmutableList.of("a.txt", "c.txt"));
+        assertNull("renamed output should miss",
+                   cache.lookup(cache.key(step, step.command(), ImmutableMap.of())));
+    }
+
+    @Test
+    public void memoized() throws IOException {
+        Files.asCharSink(new File(work, "in.txt"), UTF_8).write("one");
+        // Output differs with every execution, so that a restored one can be told apart
+        Step step = step("sh -c \"date +%s%N > out.txt; echo @stc gen=done\"");
+        StepLogs logs = new StepLogs(testFolder.newFolder("logs"));
+
+        List<String> lines = Lists.newArrayList();
+        List<Status> statuses = Lists.newArrayList();
+        List<Step> hits = Lists.newArrayList();
+        StepProcessListener delegate = new StepProcessListener() {
+            @Override
+            public void onOutput(Step step, String line) {
+                lines.add(line);
+            }
+
+            @Override
+            public void onCompletion(Step step, Status status) {
+                statuses.add(status);
+            }
+
+            @Override
+            public void onCacheHit(Step step) {
+                hits.add(step);
+            }
+        };
+
+        new StepProcessor(step, logs, delegate, step.command(), Capture.PIPE, true,
+                          new EnvFiles(), null, cache).run();
+        String output = Files.asCharSource(new File(work, "out.txt"), UTF_8).read();
+        assertTrue("should not be a hit", hits.isEmpty());
+
+        new File(work, "out.txt").delete();
+        new StepProcessor(step, logs, delegate, step.command(), Capture.PIPE, true,
+                          new EnvFiles(), null, cache).run();
+        assertEquals("should be a hit", 1, hits.size());
+        assertEquals("output should be restored", output, Files.asCharSource(new File(work, "out.txt"), UTF_8).read());
+        assertEquals("exports should be replayed", ImmutableList.of("@stc gen=done", "@stc gen=done"), lines);
+        assertEquals("incorrect statuses", ImmutableList.of(SUCCEEDED, SUCCEEDED), statuses);
+        assertTrue("incorrect stats", cache.stats().startsWith("cache: 1 hits; 1 misses"));
+
+        Files.asCharSink(new File(work, "in.txt"), UTF_8).write("two");
+        new StepProcessor(step, logs, delegate, step.command(), Capture.PIPE, true,
+                          new EnvFiles(), null, cache).run();
+        assertEquals("changed input should miss", 1, hits.size());
+    }
+
+    @Test
+    public void failuresNotCached() throws IOException {
+        Step step = step("false");
+        StepLogs logs = new StepLogs(testFolder.newFolder("logs"));
+        new StepProcessor(step, logs, new StepProcessListener() { }, step.command(), Capture.PIPE, false,
+                          new EnvFiles(), null, cache).run();
+        assertNull("failure should not be cached",
+                   cache.lookup(cache.key(step, step.command(), ImmutableMap.of())));
+    }
+
+}
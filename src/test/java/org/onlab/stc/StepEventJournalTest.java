@@ -0,0 +1,140 @@
+/*
+ * Copyright 2015-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onlab.stc;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.onlab.stc.Coordinator.Durability;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.onlab.stc.Coordinator.Status.*;
+
+/**
+ * Test of the step event journal.
+ */
+public class StepEventJournalTest {
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private File file;
+    private StepEventJournal journal;
+
+    @Before
+    public void setUp() {
+        file = new File(testFolder.getRoot(), "foo/foo.stc");
+        journal = new StepEventJournal(file);
+    }
+
+    @Test
+    public void appendAndReplay() {
+        journal.append(new StepEvent("one", 1, IN_PROGRESS, "ls ~/foo"));
+        journal.append(new StepEvent("one", 2, SUCCEEDED, null));
+        journal.append(new StepEvent("two", 3, FAILED, null));
+        journal.flush();
+
+        List<StepEvent> events = new StepEventJournal(file).replay();
+        assertEquals("incorrect event count", 3, events.size());
+        assertEquals("incorrect name", "one", events.get(0).name());
+        assertEquals("incorrect command", "ls ~/foo", events.get(0).command());
+        assertNull("incorrect command", events.get(1).command());
+        assertEquals("incorrect status", FAILED, events.get(2).status());
+        assertEquals("incorrect time", 3, events.get(2).time());
+    }
+
+    @Test
+    public void tornTail() throws IOException {
+        journal.append(new StepEvent("one", 1, IN_PROGRESS, "cmd"));
+        journal.append(new StepEvent("one", 2, SUCCEEDED, null));
+        journal.flush();
+        long intact = file.length();
+        byte[] record = StepEventJournal.encode(new StepEvent("two", 3, IN_PROGRESS, "cmd"));
+        Files.write(file.toPath(), Arrays.copyOf(record, record.length / 2), APPEND);
+
+        List<StepEvent> events = new StepEventJournal(file).replay();
+        assertEquals("incorrect event count", 2, events.size());
+        assertEquals("torn tail not truncated", intact, file.length());
+
+        StepEventJournal recovered = new StepEventJournal(file);
+        recovered.replay();
+        recovered.append(new StepEvent("two", 4, IN_PROGRESS, "cmd"));
+        recovered.flush();
+        assertEquals("incorrect event count", 3, new StepEventJournal(file).replay().size());
+    }
+
+    @Test
+    public void corruptRecord() throws IOException {
+        journal.append(new StepEvent("one", 1, IN_PROGRESS, "cmd"));
+        journal.flush();
+        Files.write(file.toPath(), "0badc0de one~2~SUCCEEDED~null\n".getBytes(UTF_8), APPEND);
+        journal = new StepEventJournal(file);
+        journal.append(new StepEvent("two", 3, IN_PROGRESS, "cmd"));
+        journal.flush();
+
+        List<StepEvent> events = new StepEventJournal(file).replay();
+        assertEquals("incorrect event count", 2, events.size());
+        assertEquals("incorrect name", "two", events.get(1).name());
+        assertEquals("journal not compacted", 2, Files.readAllLines(file.toPath()).size());
+    }
+
+    @Test
+    public void legacy() throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), ("T2 = one~2~SUCCEEDED~null\n" +
+                "T1 = one~1~IN_PROGRESS~cmd\n").getBytes(UTF_8));
+
+        List<StepEvent> events = new StepEventJournal(file).replay();
+        assertEquals("incorrect event count", 2, events.size());
+        assertEquals("incorrect status", IN_PROGRESS, events.get(0).status());
+        assertEquals("incorrect status", SUCCEEDED, events.get(1).status());
+        assertEquals("incorrect event count", 2, new StepEventJournal(file).replay().size());
+    }
+
+    @Test
+    public void groupCommit() {
+        for (Durability durability : Durability.values()) {
+            journal.clear();
+            journal.setDurability(durability);
+            for (int i = 0; i < 1_000; i++) {
+                journal.append(new StepEvent("step-" + i, i, IN_PROGRESS, "cmd"));
+            }
+            journal.flush();
+            assertEquals("incorrect event count", 1_000, new StepEventJournal(file).replay().size());
+        }
+        assertTrue("incorrect stats", journal.stats().startsWith("journal: 4000 events"));
+    }
+
+    @Test
+    public void clear() {
+        journal.append(new StepEvent("one", 1, IN_PROGRESS, "cmd"));
+        journal.flush();
+        journal.clear();
+        assertEquals("incorrect event count", 0, new StepEventJournal(file).replay().size());
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015-present Open Networking Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onlab.stc;
+
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.onlab.stc.Coordinator.Capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test of the step logs.
+ */
+public class StepLogsTest {
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private File dir;
+    private StepLogs logs;
+
+    @Before
+    public void setUp() {
+        dir = testFolder.getRoot();
+        logs = new StepLogs(dir);
+    }
+
+    private String read(String name) throws IOException {
+        try (InputStream in = StepLogs.read(dir, name)) {
+            return new String(ByteStreams.toByteArray(in), UTF_8);
+        }
+    }
+
+    @Test
+    public void plain() throws IOException {
+        Step step = new Step("plain", "cmd", null, null, null, 0);
+        try (OutputStream out = logs.open(step)) {
+            out.write("hello\n".getBytes(UTF_8));
+        }
+        assertTrue("log should exist", new File(dir, "plain.log").exists());
+        assertEquals("incorrect log", "hello\n", read("plain"));
+        assertTrue("incorrect stats", logs.stats().contains("compression ratio 1.0"));
+    }
+
+    @Test
+    public void compressed() throws IOException {
+        logs.setCompress(true);
+        Step step = new Step("zipped", "cmd", null, null, null, 0);
+        String line = Strings.repeat("all work and no play ", 10) + "\n";
+        try (OutputStream out = logs.open(step)) {
+            for (int i = 0; i < 1_000; i++) {
+                out.write(line.getBytes(UTF_8));
+            }
+        }
+        assertFalse("plain log should not exist", new File(dir, "zipped.log").exists());
+        assertTrue("compressed log should exist", new File(dir, "zipped.log.gz").exists());
+        assertEquals("incorrect log", Strings.repeat(line, 1_000), read("zipped"));
+        assertTrue("incorrect stats", logs.stats().startsWith("logs: 0.2 MB written; 0.0 MB stored"));
+    }
+
+    @Test
+    public void compressedProcessOutput() throws IOException {
+        logs.setCompress(true);
+        Step step = new Step("seq", "seq 1 1000", null, null, null, 0);
+        new StepProcessor(step, logs, new StepProcessListener() { }, step.command(),
+                          Capture.PIPE, false).run();
+        assertEquals("incorrect log", 1_000, read("seq").split("\n").length);
+    }
+
+    @Test
+    public void fileCaptureTail() throws IOException {
+        Step step = new Step("file", "seq 1 10000", null, null, null, 0);
+        new StepProcessor(step, logs, new StepProcessListener() { }, step.command(),
+                          Capture.FILE, false).run();
+        LogTail tail = logs.tail(step);
+        assertTrue("tail should be truncated", tail.isTruncated());
+        List<String> lines = tail.lines();
+        assertEquals("incorrect last line", "10000", lines.get(lines.size() - 1));
+        assertEquals("incorrect first line", String.valueOf(10_001 - lines.size()), lines.get(0));
+    }
+
+}
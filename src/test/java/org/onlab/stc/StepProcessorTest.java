@@ -15,13 +15,22 @@
  */
 package org.onlab.stc;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import org.junit.BeforeClass;
 import org.junit.ClassRule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
+import org.onlab.stc.Coordinator.Capture;
+
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
 import static com.google.common.base.Preconditions.checkState;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.onlab.stc.Coordinator.Status.SUCCEEDED;
 
@@ -38,7 +47,6 @@ public class StepProcessorTest {
     @BeforeClass
     public static void setUpClass() {
         dir = testFolder.getRoot();
-        StepProcessor.launcher = "echo";
         checkState(dir.exists() || dir.mkdirs(), "Unable to create directory");
     }
 
@@ -92,10 +100,97 @@ public class StepProcessorTest {
         assertEquals("incorrect output", "hello world", delegate.outputString);
     }
 
+    @Test
+    public void batchedOutput() throws IOException {
+        List<OutputBatch> batches = Lists.newArrayList();
+        StepProcessListener delegate = new StepProcessListener() {
+            @Override
+            public void onOutput(Step step, OutputBatch batch) {
+                batches.add(batch);
+            }
+        };
+        Step step = new Step("batched", "seq 1 10000", null, null, null, 0);
+        new StepProcessor(step, dir, delegate, step.command()).run();
+
+        List<String> lines = Lists.newArrayList();
+        long last = 0;
+        for (OutputBatch batch : batches) {
+            lines.addAll(batch.lines());
+            for (int i = 0; i < batch.size(); i++) {
+                assertTrue("incorrect time", batch.time(i) >= last);
+                last = batch.time(i);
+            }
+        }
+        assertEquals("incorrect line count", 10000, lines.size());
+        assertEquals("incorrect line", "10000", lines.get(9999));
+        assertEquals("incorrect log", lines, Files.readAllLines(new File(dir, "batched.log").toPath()));
+    }
+
+    @Test
+    public void unwantedOutput() throws IOException {
+        Listener delegate = new Listener();
+        delegate.wantsOutput = false;
+        Step step = new Step("unwanted", "echo hello  world", null, null, null, 0);
+        new StepProcessor(step, dir, delegate, step.command()).run();
+        assertEquals("incorrect status", SUCCEEDED, delegate.status);
+        assertFalse("should not have output", delegate.output);
+        assertEquals("incorrect log", ImmutableList.of("hello world"),
+                     Files.readAllLines(new File(dir, "unwanted.log").toPath()));
+    }
+
+    @Test
+    public void exportsOnly() throws IOException {
+        List<String> lines = Lists.newArrayList();
+        StepProcessListener delegate = new StepProcessListener() {
+            @Override
+            public void onOutput(Step step, OutputBatch batch) {
+                lines.addAll(batch.lines());
+            }
+
+            @Override
+            public boolean wantsOutput() {
+                return false;
+            }
+        };
+        Step step = new Step("exports", "printf \"noise\n@stc foo=bar\n@st\n@stc bar=foo\"",
+                             null, null, null, 0);
+        new StepProcessor(step, dir, delegate, step.command()).run();
+        assertEquals("incorrect lines", ImmutableList.of("@stc foo=bar", "@stc bar=foo"), lines);
+        assertEquals("incorrect log", ImmutableList.of("noise", "@stc foo=bar", "@st", "@stc bar=foo"),
+                     Files.readAllLines(new File(dir, "exports.log").toPath()));
+    }
+
+    @Test
+    public void fileCapture() throws IOException {
+        Listener delegate = new Listener();
+        delegate.wantsOutput = false;
+        Step step = new Step("file", "echo hello  world", null, null, null, 0);
+        StepProcessor processor = new StepProcessor(step, new StepLogs(dir), delegate, step.command(),
+                                                    Capture.FILE, false);
+        processor.run();
+        assertEquals("incorrect status", SUCCEEDED, delegate.status);
+        assertFalse("should not have output", delegate.output);
+        assertEquals("incorrect log", ImmutableList.of("hello world"),
+                     Files.readAllLines(new File(dir, "file.log").toPath()));
+    }
+
+    @Test
+    public void tailedFileCapture() throws IOException {
+        Listener delegate = new Listener();
+        Step step = new Step("tailed", "echo hello  world", null, null, null, 0);
+        StepProcessor processor = new StepProcessor(step, new StepLogs(dir), delegate, step.command(),
+                                                    Capture.FILE, false);
+        processor.run();
+        assertEquals("incorrect output", "hello world", delegate.outputString);
+        assertEquals("incorrect log", ImmutableList.of("hello world"),
+                     Files.readAllLines(new File(dir, "tailed.log").toPath()));
+    }
+
     private class Listener implements StepProcessListener {
 
         private Coordinator.Status status;
         private boolean started, stopped, output;
+        private boolean wantsOutput = true;
         private String outputString;
 
         @Override
@@ -114,6 +209,11 @@ public class StepProcessorTest {
             outputString = line;
             output = true;
         }
+
+        @Override
+        public boolean wantsOutput() {
+            return wantsOutput;
+        }
     }
 
 }
\ No newline at end of file
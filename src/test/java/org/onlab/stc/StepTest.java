@@ -47,7 +47,7 @@ public class StepTest {
         assertEquals("incorrect env", ENV, step.env());
         assertEquals("incorrect cwd", CWD, step.cwd());
         assertSame("incorrect group", parent, step.group());
-        assertEquals("incorrect delay", 1, step.delay());
+        assertEquals("incorrect delay", 1_000, step.delayMillis());
     }
 
     @Test